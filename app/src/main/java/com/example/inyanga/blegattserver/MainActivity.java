@@ -4,6 +4,7 @@ import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.content.Intent;
 import android.os.Handler;
+import android.os.Looper;
 import android.support.design.widget.Snackbar;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
@@ -25,10 +26,16 @@ import butterknife.ButterKnife;
 public class MainActivity extends AppCompatActivity implements BleEventCallback, LoggerCallback {
 
     private static final int BT_REQUEST_CODE = 13;
+    private static final long STATUS_TICK_DELAY = 140; //milliseconds
+    private static final String[] STATUS_FRAMES = {".", ".. ", "...  ", "....   ", "....  ", ".....  ", "......  ", "...  ", ".. ", ".."};
 
     private GattServer gattServer;
     private Logger logger;
-    private String status = GattServerProfile.STATUS_SERVER_STOPPED;
+    private volatile String status = GattServerProfile.STATUS_SERVER_STOPPED;
+    private Handler uiHandler = new Handler(Looper.getMainLooper());
+    private boolean statusTicking;
+    private boolean tickScheduled;
+    private int statusFrame;
 
     @Bind(R.id.log)
     TextView logView;
@@ -46,6 +53,15 @@ public class MainActivity extends AppCompatActivity implements BleEventCallback,
     }
 
 
+    @Override
+    protected void onDestroy() {
+        uiHandler.removeCallbacksAndMessages(null);
+        if (gattServer != null)
+            gattServer.close();
+        logger.close();
+        super.onDestroy();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         MenuInflater inflater = getMenuInflater();
@@ -77,7 +93,7 @@ public class MainActivity extends AppCompatActivity implements BleEventCallback,
 
     private void startServer() {
         if (gattServer != null)
-            gattServer.stopServer();
+            gattServer.close();
         gattServer = new GattServer(getApplicationContext(), this, logger);
 
             if (gattServer.initBluetooth())
@@ -122,40 +138,53 @@ public class MainActivity extends AppCompatActivity implements BleEventCallback,
 
     @Override
     public void onStatus(String status) {
-
         this.status = status;
+        uiHandler.post(renderStatus);
     }
 
     @Override
-    public void statusUpdate() {
-
-        final int delay = 140; //milliseconds
-
-       new Thread(new Runnable() {
+    public void statusUpdate(final boolean enabled) {
+        uiHandler.post(new Runnable() {
             @Override
             public void run() {
-//                String[] statChar = {"/", "-", "\\", "|","/", "-", "\\", "|"};
-                String[] statChar = {".", ".. ", "...  ", "....   ", "....  ", ".....  ", "......  ", "...  ", ".. ", ".."};
-
-                while (!status.equals(GattServerProfile.STATUS_SERVER_STOPPED)) {
-                    for (final String s : statChar) {
-                        runOnUiThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                statusView.setText(String.format("%s   %s", s, status));
-                            }
-                        });
-
-                        try {
-                            Thread.sleep(delay);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }
+                statusTicking = enabled;
+                uiHandler.removeCallbacks(statusTick);
+                tickScheduled = false;
+                renderStatus.run();
             }
-        }).start();
+        });
+    }
 
+    /**
+     * Renders the current status on the UI thread and keeps the animation tick running only
+     * while the status is animated and the server is up, so an idle server posts nothing.
+     */
+    private Runnable renderStatus = new Runnable() {
+        @Override
+        public void run() {
+            uiHandler.removeCallbacks(renderStatus);
+            String current = status;
+            String dots = isAnimated(current) ? STATUS_FRAMES[statusFrame] : "";
+            statusView.setText(String.format("%s   %s", dots, current));
+            if (statusTicking && isAnimated(current) && !tickScheduled) {
+                tickScheduled = true;
+                uiHandler.postDelayed(statusTick, STATUS_TICK_DELAY);
+            }
+        }
+    };
+
+    private Runnable statusTick = new Runnable() {
+        @Override
+        public void run() {
+            tickScheduled = false;
+            statusFrame = (statusFrame + 1) % STATUS_FRAMES.length;
+            renderStatus.run();
+        }
+    };
 
+    private static boolean isAnimated(String status) {
+        return !status.equals(GattServerProfile.STATUS_SERVER_STOPPED)
+                && !status.equals(GattServerProfile.STATUS_CONNECTED)
+                && !status.equals(GattServerProfile.STATUS_DISCONNECTED);
     }
 }
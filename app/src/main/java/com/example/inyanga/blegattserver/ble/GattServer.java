@@ -16,21 +16,65 @@ import android.bluetooth.le.AdvertiseSettings;
 import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.util.Log;
 
 import com.example.inyanga.blegattserver.logger.Logger;
-
-import java.io.ByteArrayOutputStream;
+import com.example.inyanga.blegattserver.protocol.BufferedMessage;
+import com.example.inyanga.blegattserver.protocol.ChunkSource;
+import com.example.inyanga.blegattserver.protocol.FramedPayload;
+import com.example.inyanga.blegattserver.protocol.GattTrace;
+import com.example.inyanga.blegattserver.protocol.GattTransport;
+import com.example.inyanga.blegattserver.protocol.LoadProfile;
+import com.example.inyanga.blegattserver.protocol.MappedRange;
+import com.example.inyanga.blegattserver.protocol.MessageHandler;
+import com.example.inyanga.blegattserver.protocol.MessageHeader;
+import com.example.inyanga.blegattserver.protocol.OutboundStream;
+import com.example.inyanga.blegattserver.protocol.PacketBuffer;
+import com.example.inyanga.blegattserver.protocol.PayloadCache;
+import com.example.inyanga.blegattserver.protocol.PayloadCodec;
+import com.example.inyanga.blegattserver.protocol.ProtocolEngine;
+import com.example.inyanga.blegattserver.protocol.RecordCoalescer;
+import com.example.inyanga.blegattserver.protocol.ResumableMessage;
+import com.example.inyanga.blegattserver.protocol.StreamChunkSource;
+import com.example.inyanga.blegattserver.protocol.TransferMetrics;
+import com.example.inyanga.blegattserver.protocol.TransferRequest;
+import com.example.inyanga.blegattserver.protocol.TransferSession;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Queue;
-import java.util.Random;
-import java.util.concurrent.ConcurrentLinkedQueue;
-
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Android side of the server. Every BluetoothGattServerCallback is marshalled onto one event-loop
+ * thread, which owns the server lifecycle, the connected devices and the ProtocolEngine, so none
+ * of that state is shared with the binder threads.
+ */
 public class GattServer {
 
-    private static final byte PROTOCOL_VERSION = 1;
-    private static final int PACKET_SIZE = 20;
+    /**
+     * Server lifecycle, only changed on the event loop through moveTo().
+     */
+    private enum State {
+        STOPPED, ADVERTISING, CONNECTED
+    }
+
+    private static final int MAX_RECENT_DISCONNECTS = 16;
+
+    private static final long PAYLOAD_CACHE_BYTES = 256 * 1024;
+    private static final int STREAM_READ_AHEAD = 4096;
+    private static final int STREAM_BUFFER = 16 * 1024;
+    private static final long MAX_REMOTE_LOAD_MILLIS = 60 * 1000;
 
     private Context context;
     private BleEventCallback bleEventCallback;
@@ -38,11 +82,24 @@ public class GattServer {
     private BluetoothAdapter bluetoothAdapter;
     private BluetoothGattServer gattServer;
     private BluetoothLeAdvertiser advertiser;
-    private BluetoothDevice connectedDevice;
-    private BluetoothGattCharacteristic dataChar;
-    private Queue<byte[]> byteQueue = new ConcurrentLinkedQueue<>();
-    private Queue<byte[]> dataQueue;
-    private int notifyReceiveCount;
+    private BluetoothGattCharacteristic[] dataChars;
+    private Map<String, BluetoothDevice> connectedDevices = new HashMap<>();
+    private HandlerThread eventThread;
+    private Handler eventLoop;
+    private HandlerThread preloadThread;
+    private Handler preloader;
+    private State state = State.STOPPED;
+    private Map<String, Long> recentDisconnects = new LinkedHashMap<String, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_RECENT_DISCONNECTS;
+        }
+    };
+    private volatile long advertiseRequestedAt;
+    private PayloadCache payloadCache;
+    private ProtocolEngine engine;
+    private volatile GattTrace trace;
+    private LoadProfile loadProfile = new LoadProfile();
     private Logger logger;
 
 
@@ -50,6 +107,20 @@ public class GattServer {
         this.context = context;
         this.bleEventCallback = bleEventCallback;
         this.logger = logger;
+        this.eventThread = new HandlerThread("GattEventLoop", Process.THREAD_PRIORITY_FOREGROUND);
+        this.eventThread.start();
+        this.eventLoop = new Handler(eventThread.getLooper());
+        this.preloadThread = new HandlerThread("PayloadPreload", Process.THREAD_PRIORITY_BACKGROUND);
+        this.preloadThread.start();
+        this.preloader = new Handler(preloadThread.getLooper());
+        this.payloadCache = new PayloadCache(new PayloadCache.Loader() {
+            @Override
+            public InputStream open(String name) throws IOException {
+                return GattServer.this.context.getAssets().open(name);
+            }
+        }, PAYLOAD_CACHE_BYTES);
+        this.engine = new ProtocolEngine(transport, logger, requestHandler);
+        this.engine.setStripeCount(GattServerProfile.DATA_STRIPES);
     }
 
     public boolean initBluetooth() {
@@ -80,24 +151,88 @@ public class GattServer {
     }
 
     public void initServer() {
+        eventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                startServer();
+            }
+        });
+    }
+
+    public void stopServer() {
+        eventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                shutDownServer();
+            }
+        });
+    }
+
+    /**
+     * Stops the server and ends the event loop and the preloading thread. The instance cannot
+     * be started again.
+     */
+    public void close() {
+        stopServer();
+        stopTrace();
+        eventThread.quitSafely();
+        preloadThread.quit();
+    }
+
+    /***********************************************************************************************
+     Lifecycle, runs on the event loop
+     **********************************************************************************************/
+
+    private void moveTo(State next) {
+        state = next;
+        switch (next) {
+            case ADVERTISING:
+                logger.setStatus(GattServerProfile.STATUS_ADVERTISING);
+                logger.startUpdatingStatus();
+                break;
+            case CONNECTED:
+                logger.setStatus(GattServerProfile.STATUS_CONNECTED);
+                break;
+            case STOPPED:
+                logger.setStatus(GattServerProfile.STATUS_SERVER_STOPPED);
+                logger.stopUpdatingStatus();
+                break;
+        }
+    }
+
+    private void startServer() {
+        if (state != State.STOPPED) return;
         BluetoothGattService dataService = new BluetoothGattService(GattServerProfile.DATA_SERVICE,
                 BluetoothGattService.SERVICE_TYPE_PRIMARY);
 
 
-        dataChar =
+        // Write without response lets centrals upload without an ATT round trip per packet
+        BluetoothGattCharacteristic dataChar =
                 new BluetoothGattCharacteristic(GattServerProfile.DATA_CHAR,
-                        BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                        BluetoothGattCharacteristic.PROPERTY_WRITE
+                                | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE
+                                | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
                         BluetoothGattCharacteristic.PERMISSION_WRITE);
 
-        //Descriptor for read notifications
-        BluetoothGattDescriptor cccDescriptor = new BluetoothGattDescriptor(GattServerProfile.CCC_DESCRIPTOR,
-                BluetoothGattDescriptor.PERMISSION_WRITE);
-        dataChar.addDescriptor(cccDescriptor);
+        // Extra stripes only notify; requests always go to DATA_CHAR
+        dataChars = new BluetoothGattCharacteristic[GattServerProfile.DATA_STRIPES];
+        dataChars[0] = dataChar;
+        for (int stripe = 1; stripe < dataChars.length; stripe++) {
+            dataChars[stripe] = new BluetoothGattCharacteristic(GattServerProfile.dataChar(stripe),
+                    BluetoothGattCharacteristic.PROPERTY_NOTIFY, 0);
+        }
 
-        dataService.addCharacteristic(dataChar);
+        for (BluetoothGattCharacteristic characteristic : dataChars) {
+            //Descriptor for read notifications
+            BluetoothGattDescriptor cccDescriptor = new BluetoothGattDescriptor(GattServerProfile.CCC_DESCRIPTOR,
+                    BluetoothGattDescriptor.PERMISSION_WRITE);
+            characteristic.addDescriptor(cccDescriptor);
+            dataService.addCharacteristic(characteristic);
+        }
         gattServer = bluetoothManager.openGattServer(context, gattServerCallback);
         gattServer.addService(dataService);
         logger.log("Server started", true, 0);
+        preloadAssets();
         startAdvertising();
     }
 
@@ -116,110 +251,570 @@ public class GattServer {
                 .setIncludeTxPowerLevel(true)
                 .build();
 
+        advertiseRequestedAt = System.nanoTime();
         advertiser.startAdvertising(settings, data, advertiseCallback);
-        logger.setStatus(GattServerProfile.STATUS_ADVERTISING);
-        logger.startUpdatingStatus();
+        moveTo(State.ADVERTISING);
     }
 
-    public void stopServer() {
-        advertiser.stopAdvertising(advertiseCallback);
+    private void shutDownServer() {
+        if (state == State.STOPPED) return;
+        engine.reset();
+        if (advertiser != null) advertiser.stopAdvertising(advertiseCallback);
         gattServer.close();
-        logger.setStatus(GattServerProfile.STATUS_SERVER_STOPPED);
+        connectedDevices.clear();
+        moveTo(State.STOPPED);
         logger.log("Server stopped", true, 1);
         logger.log("", true, 2);
     }
 
-    private void readFile() {
-        InputStream in = null;
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        try {
-//            buffer.write(new byte[]{protocolVersion, majByte, minByte});
-            in = context.getAssets().open("lorem");
+    private void onDeviceConnected(BluetoothDevice device) {
+        if (state != State.ADVERTISING && state != State.CONNECTED) return;
+        if (!GattServerProfile.ADVERTISE_WHILE_CONNECTED && advertiser != null)
+            advertiser.stopAdvertising(advertiseCallback);
+        connectedDevices.put(device.getAddress(), device);
+        engine.onConnected(device.getAddress());
+        Long disconnectedAt = recentDisconnects.remove(device.getAddress());
+        if (disconnectedAt != null) {
+            long gapNanos = System.nanoTime() - disconnectedAt;
+            engine.getMetrics().onReconnected(gapNanos);
+            logger.log("Reconnected after " + gapNanos / 1000000 + " ms", true, 0);
+        }
+        logger.log("Device connected:", true, 0);
+        String name = (device.getName() == null) ? "N/A" : device.getName();
+        logger.log("    Name: " + name, true, 0);
+        logger.log("    MAC: " + device.getAddress(), true, 0);
+        moveTo(State.CONNECTED);
+    }
 
-            int nRead;
-            byte[] data = new byte[16384];
+    private void onDeviceDisconnected(BluetoothDevice device) {
+        if (connectedDevices.remove(device.getAddress()) == null) return;
+        logger.log("Device disconnected: " + device.getAddress(), true, 1);
+        engine.onDisconnected(device.getAddress());
+        recentDisconnects.put(device.getAddress(), System.nanoTime());
+        if (state == State.CONNECTED && engine.getSessionCount() == 0) {
+            logger.setStatus(GattServerProfile.STATUS_DISCONNECTED);
+            resumeAdvertising();
+        }
+    }
 
-            while ((nRead = in.read(data, 0, data.length)) != -1) {
-                buffer.write(data, 0, nRead);
-            }
+    /**
+     * Makes the server connectable again after the last central left. The GATT server and its
+     * service stay registered; only advertising is restarted, and not even that if it kept
+     * running during the connection.
+     */
+    private void resumeAdvertising() {
+        if (GattServerProfile.ADVERTISE_WHILE_CONNECTED && advertiser != null) {
+            moveTo(State.ADVERTISING);
+            return;
+        }
+        startAdvertising();
+    }
 
+    private ByteBuffer readFile(int codec) {
+        try {
+            ByteBuffer message = payloadCache.get(GattServerProfile.DEFAULT_ASSET,
+                    MessageHeader.withCodec(MessageHeader.VERSION_1, codec));
+            logger.log("Cache hits/misses: " + payloadCache.getHits() + "/" + payloadCache.getMisses(), true, 0);
+            return message;
         } catch (IOException e) {
             e.printStackTrace();
+            return null;
         }
-        int dataLength = buffer.toByteArray().length;
-        byte[] length = new byte[2];
-        length[0] = (byte) (dataLength & 0xFF);
-        length[1] = (byte) ((dataLength >> 8) & 0xFF);
-        ByteArrayOutputStream message = new ByteArrayOutputStream();
+    }
+
+    /**
+     * Compresses the assets ahead of the first request, off the event loop. Preloads queue up on
+     * one background thread that close() ends, however often the server is restarted.
+     */
+    private void preloadAssets() {
+        preloader.post(new Runnable() {
+            @Override
+            public void run() {
+                payloadCache.preload(GattServerProfile.ASSETS, MessageHeader.VERSION_1);
+                for (int codec : PayloadCodec.SUPPORTED) {
+                    payloadCache.preload(GattServerProfile.ASSETS,
+                            MessageHeader.withCodec(MessageHeader.VERSION_1, codec));
+                }
+                Log.i("PAYLOAD_CACHE", "Compressed in " + payloadCache.getCompressNanos() / 1000000 + " ms");
+            }
+        });
+    }
+
+    public PayloadCache getPayloadCache() {
+        return payloadCache;
+    }
+
+    /**
+     * The asset as a protocol v2 stream. Only STREAM_READ_AHEAD bytes of it are held in memory
+     * at a time. With a codec the asset is compressed while it is read; compression is
+     * deterministic, so a resumed transfer skips to the same compressed offset.
+     */
+    private ResumableMessage openFileStream(final String name, final int codec) throws IOException {
+        final long length = assetLength(name);
+        if (length > MessageHeader.MAX_LENGTH_V2)
+            throw new IOException(name + " is too large for protocol v2: " + length + " bytes");
+        return new ResumableMessage() {
+            @Override
+            public ChunkSource open(PacketBuffer packets, long offset) throws IOException {
+                InputStream in = context.getAssets().open(name);
+                StreamChunkSource source;
+                if (codec == PayloadCodec.NONE) {
+                    source = new StreamChunkSource(in, length, STREAM_READ_AHEAD, packets);
+                } else {
+                    source = new StreamChunkSource(PayloadCodec.compressingStream(in, codec),
+                            MessageHeader.withCodec(MessageHeader.VERSION_2, codec),
+                            MessageHeader.LENGTH_UNKNOWN, STREAM_READ_AHEAD, packets);
+                }
+                source.skip(offset);
+                return source;
+            }
+
+            @Override
+            public long length() {
+                return (codec == PayloadCodec.NONE) ? MessageHeader.SIZE_V2 + length : -1;
+            }
+        };
+    }
+
+    private long assetLength(String name) throws IOException {
         try {
-            message.write(new byte[]{PROTOCOL_VERSION, length[1], length[0]});
-            message.write(buffer.toByteArray());
-            notifyReceiveCount = 0;
-            prepareData(message.toByteArray(), PACKET_SIZE);
-//            prepareCtlEmulatedData(message.toByteArray());
+            AssetFileDescriptor fd = context.getAssets().openFd(name);
+            try {
+                return fd.getLength();
+            } finally {
+                fd.close();
+            }
         } catch (IOException e) {
-            e.printStackTrace();
-        }
-        Log.i("DATA_SIZE", "SIZE: " + buffer.toByteArray().length);
-    }
-
-    private void prepareCtlEmulatedData(byte[] array) {
-        int max = 20;
-        int min = 1;
-
-        byteQueue = new ConcurrentLinkedQueue<>();
-        int counter = 0;
-        while (counter < array.length) {
-            Random random = new Random();
-            int randomSize = random.nextInt(max - min) + min;
-            int packetSize = Math.min(randomSize, array.length - counter);
-            byte[] packet = new byte[packetSize];
-            for (int i = 0; i < packetSize; i++) {
-                packet[i] = array[counter++];
+            // Compressed assets have no file descriptor, their stream reports the full length
+            InputStream in = context.getAssets().open(name);
+            try {
+                return in.available();
+            } finally {
+                in.close();
             }
-            byteQueue.add(packet);
         }
-        sendData();
     }
 
-    private void prepareData(byte[] array, int packetSize) {
-        int numOfChunks = (int) Math.ceil((double) array.length / packetSize);
+    /**
+     * The engine is confined to the event loop; only call it from tasks passed to post().
+     */
+    public ProtocolEngine getEngine() {
+        return engine;
+    }
+
+    public TransferMetrics getMetrics() {
+        return engine.getMetrics();
+    }
+
+    public void post(Runnable task) {
+        eventLoop.post(task);
+    }
+
+    /**
+     * Sends a payload buffer to a connected central, framed in protocol v1 or, if it is larger
+     * than 64 KB, v2. The buffer must not change until the transfer is complete.
+     */
+    public void send(final String address, final ByteBuffer payload) {
+        eventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                TransferSession session = engine.getSession(address);
+                if (session == null) return;
+                FramedPayload message = new FramedPayload(payload, MessageHeader.VERSION_1);
+                engine.send(session, message.open(session.getPacketBuffer(), 0));
+            }
+        });
+    }
+
+    /**
+     * Streams length bytes of in as a protocol v2 message. The stream is read on the event loop,
+     * STREAM_READ_AHEAD bytes at a time and only as fast as the link takes them, so it should not
+     * block for long, e.g. a file; use openStream() for data produced on other threads.
+     */
+    public void send(final String address, final InputStream in, final long length) {
+        eventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                TransferSession session = engine.getSession(address);
+                StreamChunkSource source = new StreamChunkSource(in, length, STREAM_READ_AHEAD,
+                        (session == null) ? new PacketBuffer() : session.getPacketBuffer());
+                if (session == null) {
+                    source.close();
+                    return;
+                }
+                engine.send(session, source);
+            }
+        });
+    }
+
+    /**
+     * Opens a protocol v2 message of length bytes that the caller produces from any thread,
+     * buffering at most STREAM_BUFFER bytes. Producers either write() and block while the link
+     * is saturated, or pass a listener that is asked for more as notifications complete. The
+     * stream is closed, failing blocked writers, if the central is not connected or leaves. A
+     * producer that stops before length bytes calls abort() to end the transfer.
+     */
+    public OutboundStream openStream(final String address, long length,
+                                     OutboundStream.DemandListener listener) {
+        final OutboundStream stream = new OutboundStream(length, STREAM_BUFFER);
+        stream.setDemandListener(listener);
+        eventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                TransferSession session = engine.getSession(address);
+                if (session == null)
+                    stream.close();
+                else
+                    engine.send(session, stream);
+            }
+        });
+        return stream;
+    }
+
+    /**
+     * Sets the traffic shape of load tests, both those started here and those a central asks
+     * for with a LOAD request. The profile must not be changed afterwards.
+     */
+    public void setLoadProfile(final LoadProfile profile) {
+        eventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                loadProfile = profile;
+            }
+        });
+    }
+
+    /**
+     * Starts a seeded load test on a connected central; the same seed and profile repeat the
+     * exact same traffic.
+     */
+    public void startLoad(final String address, final long seed) {
+        eventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                TransferSession session = engine.getSession(address);
+                if (session != null) engine.startLoad(session, loadProfile, seed);
+            }
+        });
+    }
+
+    public void stopLoad(final String address) {
+        eventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                TransferSession session = engine.getSession(address);
+                if (session != null) engine.stopLoad(session);
+            }
+        });
+    }
 
-        byteQueue = new ConcurrentLinkedQueue<>();
+    /**
+     * Starts recording every GATT callback, notification and transfer into a binary trace file
+     * for {@link com.example.inyanga.blegattserver.protocol.GattTraceAnalyzer}. Callbacks are
+     * recorded on the binder thread, before they are posted to the event loop.
+     */
+    public void startTrace(File file) throws IOException {
+        final GattTrace trace = new GattTrace(file, GattServerProfile.TRACE_CAPACITY);
+        stopTrace();
+        this.trace = trace;
+        eventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                engine.setTrace(trace);
+            }
+        });
+        logger.log("Tracing to " + file, true, 0);
+    }
 
-        for (int i = 0; i < numOfChunks; ++i) {
-            int start = i * packetSize;
-            int length = Math.min(array.length - start, packetSize);
+    public void stopTrace() {
+        final GattTrace trace = this.trace;
+        if (trace == null) return;
+        this.trace = null;
+        eventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                engine.setTrace(null);
+                try {
+                    trace.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                logger.log("Trace: " + trace.getRecordCount() + " records", true, 0);
+            }
+        });
+    }
+
+    private void trace(byte type, BluetoothDevice device, int status, int arg0, int arg1, long arg2) {
+        GattTrace trace = this.trace;
+        if (trace != null) trace.record(type, device.getAddress(), status, arg0, arg1, arg2);
+    }
 
-            byte[] temp = new byte[length];
-            System.arraycopy(array, start, temp, 0, length);
-            byteQueue.add(temp);
+    /**
+     * Queues a small record, e.g. a telemetry sample, for a connected central. Records are
+     * coalesced into full notifications, see {@link RecordCoalescer}. A record that fits the
+     * format but not a frame at the central's current MTU is dropped and logged.
+     *
+     * @throws IllegalArgumentException if the record is longer than
+     *                                  {@link RecordCoalescer#MAX_RECORD_SIZE}
+     */
+    public void sendRecord(final String address, final byte[] record) {
+        if (record.length > RecordCoalescer.MAX_RECORD_SIZE)
+            throw new IllegalArgumentException("Record of " + record.length + " bytes, at most "
+                    + RecordCoalescer.MAX_RECORD_SIZE + " allowed");
+        eventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                TransferSession session = engine.getSession(address);
+                if (session != null) engine.sendRecord(session, record);
+            }
+        });
+    }
+
+    /**
+     * Trades record latency against notification count for one central: records are sent
+     * once flushThreshold bytes are queued or the oldest has waited maxDelayMillis.
+     */
+    public void setCoalescing(final String address, final int flushThreshold, final long maxDelayMillis) {
+        eventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                TransferSession session = engine.getSession(address);
+                if (session != null) session.getRecords().configure(flushThreshold, maxDelayMillis);
+            }
+        });
+    }
+
+    /**
+     * Tunes how many notifications one central may have outstanding, e.g. maxSize 1 for a
+     * handset whose stack drops queued notifications.
+     */
+    public void setNotificationWindow(final String address, final int initialSize, final int maxSize) {
+        eventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                TransferSession session = engine.getSession(address);
+                if (session != null) session.getNotificationWindow().resize(initialSize, maxSize);
+            }
+        });
+    }
+
+    public void setMessageHandler(final MessageHandler messageHandler) {
+        eventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                engine.setMessageHandler((messageHandler == null) ? requestHandler : messageHandler);
+            }
+        });
+    }
+
+    /**
+     * Default handler: any completed message is a request for the data file, answered in the
+     * protocol version and, if supported, with the codec the request was written in. A control
+     * message with a {@link TransferRequest} makes the transfer resumable or resumes one; a READ
+     * asks for a range of any asset or app file instead, and a LOAD starts a seeded load test.
+     */
+    private MessageHandler requestHandler = new MessageHandler() {
+        @Override
+        public void onMessage(TransferSession session, byte version, ByteBuffer payload) {
+            TransferRequest request = TransferRequest.parse(version, payload);
+            if (request != null && request.getCommand() == TransferRequest.RESUME) {
+                resumeTransfer(session, request);
+                return;
+            }
+            if (request != null && request.getCommand() == TransferRequest.READ) {
+                readRange(session, version, request);
+                return;
+            }
+            if (request != null && request.getCommand() == TransferRequest.LOAD) {
+                logger.log("Client requesting load test", true, 1);
+                // Requests other than LOAD are ignored while a load runs, so a central could
+                // never end an unbounded one
+                engine.startLoad(session, loadProfile.bounded(MAX_REMOTE_LOAD_MILLIS), request.getSeed());
+                return;
+            }
+            logger.log("Client requesting data transfer", true, 1);
+            logger.log("", true, 0);
+            logger.log("Sending data:", true, 0);
+            logger.setStatus(GattServerProfile.STATUS_SENDING_DATA);
+            int codec = MessageHeader.codec(version);
+            if (!PayloadCodec.isSupported(codec)) codec = PayloadCodec.NONE;
+            logger.log("Codec: " + PayloadCodec.name(codec), true, 0);
+            if (request != null && request.isReliable()) {
+                if (MessageHeader.version(version) != MessageHeader.VERSION_2) {
+                    sendReliable(session, codec);
+                    return;
+                }
+                logger.log("Reliable mode needs a buffered v1 message, streaming instead", true, 0);
+            }
+            if (MessageHeader.version(version) == MessageHeader.VERSION_2) {
+                try {
+                    ResumableMessage message = openFileStream(GattServerProfile.DEFAULT_ASSET, codec);
+                    if (codec != PayloadCodec.NONE)
+                        session.setPayloadLength(assetLength(GattServerProfile.DEFAULT_ASSET));
+                    if (request != null)
+                        engine.send(session, request.getTransferId(), message);
+                    else
+                        engine.send(session, message.open(session.getPacketBuffer(), 0));
+                } catch (IOException e) {
+                    logger.log("Cannot open stream: " + e.getMessage(), true, 0);
+                }
+                return;
+            }
+            ByteBuffer message = readFile(codec);
+            if (message == null) return;
+            // The cache sends the raw payload when compression would not make it smaller
+            if (MessageHeader.codec(message.get(0)) != PayloadCodec.NONE)
+                session.setPayloadLength(payloadCache.getPayloadLength(GattServerProfile.DEFAULT_ASSET));
+            if (request != null) {
+                try {
+                    engine.send(session, request.getTransferId(), new BufferedMessage(message));
+                } catch (IOException e) {
+                    logger.log("Cannot start transfer: " + e.getMessage(), true, 0);
+                }
+                return;
+            }
+            engine.send(session, message);
+        }
+    };
+
+    private void sendReliable(TransferSession session, int codec) {
+        ByteBuffer message = readFile(codec);
+        if (message == null) return;
+        try {
+            engine.sendReliable(session, message);
+        } catch (IllegalArgumentException e) {
+            logger.log("Cannot send reliably: " + e.getMessage(), true, 0);
         }
+    }
 
-        sendData();
+    /**
+     * Answers a READ with just the requested range, uncompressed. App files and assets stored
+     * uncompressed in the APK are memory-mapped; compressed assets have no file descriptor and
+     * are streamed from the start of the range instead.
+     */
+    private void readRange(TransferSession session, byte version, TransferRequest request) {
+        String name = request.getName();
+        logger.log("Client reading " + name + " from " + request.getOffset(), true, 1);
+        try {
+            ResumableMessage message = (request.getStore() == TransferRequest.STORE_FILE)
+                    ? mapFile(name, request, version) : mapAsset(name, request, version);
+            logger.log("Range: " + message.length() + " bytes framed", true, 0);
+            logger.setStatus(GattServerProfile.STATUS_SENDING_DATA);
+            engine.send(session, request.getTransferId(), message);
+        } catch (IOException e) {
+            logger.log("Cannot read " + name + ": " + e.getMessage(), true, 0);
+        }
     }
 
-    private void sendData() {
-        if (dataChar != null) {
-            byte[] byteValue = byteQueue.poll();
-            if (byteValue != null) {
-                notifyReceiveCount += byteValue.length;
-                dataChar.setValue(byteValue);
-                gattServer.notifyCharacteristicChanged(connectedDevice, dataChar, false);
-            } else {
-                logger.log("Transfer complete", true, 1);
-                logger.log("Sent bytes: " + notifyReceiveCount, true, 0);
-                logger.setStatus(GattServerProfile.STATUS_CONNECTED);
-                notifyReceiveCount = 0;
-//                byteQueue = dataQueue;
+    private ResumableMessage mapFile(String name, TransferRequest request, byte version) throws IOException {
+        File dir = context.getFilesDir();
+        File file = new File(dir, name);
+        if (!file.getCanonicalPath().startsWith(dir.getCanonicalPath() + File.separator))
+            throw new IOException("not an app file");
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            long length = rangeLength(request, in.length());
+            return new MappedRange(in.getChannel(), request.getOffset(), length, version);
+        } finally {
+            in.close();
+        }
+    }
+
+    private ResumableMessage mapAsset(String name, TransferRequest request, byte version) throws IOException {
+        AssetFileDescriptor fd;
+        try {
+            fd = context.getAssets().openFd(name);
+        } catch (FileNotFoundException e) {
+            return streamAsset(name, request);
+        }
+        try {
+            long length = rangeLength(request, fd.getLength());
+            // The mapping stays valid after the stream and its channel are closed
+            FileInputStream in = fd.createInputStream();
+            try {
+                return new MappedRange(in.getChannel(), fd.getStartOffset() + request.getOffset(),
+                        length, version);
+            } finally {
+                in.close();
             }
+        } finally {
+            fd.close();
         }
     }
 
-    private void setConnectedDevice(BluetoothDevice device) {
-        this.connectedDevice = device;
+    private ResumableMessage streamAsset(final String name, TransferRequest request) throws IOException {
+        final long start = request.getOffset();
+        final long length = rangeLength(request, assetLength(name));
+        return new ResumableMessage() {
+            @Override
+            public ChunkSource open(PacketBuffer packets, long offset) throws IOException {
+                InputStream in = context.getAssets().open(name);
+                for (long skipped = 0; skipped < start; ) {
+                    long n = in.skip(start - skipped);
+                    if (n <= 0) {
+                        in.close();
+                        throw new IOException(name + " ended before " + start);
+                    }
+                    skipped += n;
+                }
+                StreamChunkSource source = new StreamChunkSource(in, length, STREAM_READ_AHEAD, packets);
+                source.skip(offset);
+                return source;
+            }
+
+            @Override
+            public long length() {
+                return MessageHeader.SIZE_V2 + length;
+            }
+        };
     }
 
+    private static long rangeLength(TransferRequest request, long size) throws IOException {
+        long length = request.getRangeLength(size);
+        if (length < 0)
+            throw new IOException("offset " + request.getOffset() + " is past the end (" + size + " bytes)");
+        return length;
+    }
+
+    private void resumeTransfer(TransferSession session, TransferRequest request) {
+        logger.log("Client resuming transfer " + request.getTransferId(), true, 1);
+        try {
+            if (engine.resume(session, request.getTransferId(), request.getOffset()))
+                logger.setStatus(GattServerProfile.STATUS_SENDING_DATA);
+            else
+                logger.log("Cannot resume: unknown or expired transfer", true, 0);
+        } catch (IOException e) {
+            logger.log("Cannot resume: " + e.getMessage(), true, 0);
+        }
+    }
+
+    /***********************************************************************************************
+     GattTransport implementation
+     **********************************************************************************************/
+
+    private GattTransport transport = new GattTransport() {
+        @Override
+        public boolean notify(String address, int stripe, byte[] value) {
+            BluetoothDevice device = connectedDevices.get(address);
+            if (device == null || dataChars == null) return false;
+            BluetoothGattCharacteristic characteristic = dataChars[stripe];
+            characteristic.setValue(value);
+            return gattServer.notifyCharacteristicChanged(device, characteristic, false);
+        }
+
+        @Override
+        public void sendResponse(String address, int requestId, int status, int offset, byte[] value) {
+            BluetoothDevice device = connectedDevices.get(address);
+            if (device != null)
+                gattServer.sendResponse(device, requestId, status, offset, value);
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+            eventLoop.postDelayed(task, delayMillis);
+        }
+    };
+
     /***********************************************************************************************
      AdvertiseCallback implementation
      **********************************************************************************************/
@@ -227,7 +822,8 @@ public class GattServer {
     private AdvertiseCallback advertiseCallback = new AdvertiseCallback() {
         @Override
         public void onStartSuccess(AdvertiseSettings settingsInEffect) {
-            logger.log("Start advertising...", true, 0);
+            long startMillis = (System.nanoTime() - advertiseRequestedAt) / 1000000;
+            logger.log("Start advertising... (" + startMillis + " ms)", true, 0);
         }
 
         @Override
@@ -242,109 +838,92 @@ public class GattServer {
 
     private BluetoothGattServerCallback gattServerCallback = new BluetoothGattServerCallback() {
 
-        private static final int MAJOR_BYTE = 1;
-        private static final int MINOR_BYTE = 2;
-
-        private int receiveCounter;
-        private boolean firstPacket = true;
-        private int dataLength;
-        private byte majByte;
-        private byte minByte;
-
 
         @Override
-        public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
-            if (newState == BluetoothProfile.STATE_CONNECTED &&
-                    status == BluetoothGatt.GATT_SUCCESS) {
-//                advertiser.stopAdvertising(advertiseCallback);
-                setConnectedDevice(device);
-                firstPacket = true;
-                receiveCounter = 0;
-                logger.log("Device connected:", true, 0);
-                String name = (device.getName() == null) ? "N/A" : device.getName();
-                logger.log("    Name: " + name, true, 0);
-                logger.log("    MAC: " + device.getAddress(), true, 0);
-                logger.setStatus(GattServerProfile.STATUS_CONNECTED);
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-
-                setConnectedDevice(null);
-                logger.log("Device disconnected", true, 1);
-                logger.setStatus(GattServerProfile.STATUS_DISCONNECTED);
-                stopServer();
-                initServer();
-
-            }
+        public void onConnectionStateChange(final BluetoothDevice device, final int status, final int newState) {
+            if (newState == BluetoothProfile.STATE_CONNECTED)
+                trace(GattTrace.CONNECTED, device, status, 0, 0, 0);
+            else if (newState == BluetoothProfile.STATE_DISCONNECTED)
+                trace(GattTrace.DISCONNECTED, device, status, 0, 0, 0);
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (newState == BluetoothProfile.STATE_CONNECTED &&
+                            status == BluetoothGatt.GATT_SUCCESS) {
+                        onDeviceConnected(device);
+                    } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                        onDeviceDisconnected(device);
+                    }
+                }
+            });
         }
 
-
         @Override
-        public void onDescriptorWriteRequest(BluetoothDevice device, int requestId, BluetoothGattDescriptor descriptor, boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
-            logger.setStatus(GattServerProfile.STATUS_WRITING_CCCD);
-            logger.log("Notifications enabled", true, 0);
+        public void onMtuChanged(final BluetoothDevice device, final int mtu) {
+            trace(GattTrace.MTU_CHANGED, device, 0, mtu, 0, 0);
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    engine.onMtuChanged(device.getAddress(), mtu);
+                }
+            });
+        }
 
-            if (responseNeeded)
-                gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, value);
-            logger.setStatus(GattServerProfile.STATUS_CONNECTED);
+        @Override
+        public void onDescriptorWriteRequest(final BluetoothDevice device, final int requestId, BluetoothGattDescriptor descriptor, boolean preparedWrite, final boolean responseNeeded, final int offset, final byte[] value) {
+            trace(GattTrace.DESCRIPTOR_WRITE, device, 0, requestId, (value == null) ? 0 : value.length, offset);
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    logger.setStatus(GattServerProfile.STATUS_WRITING_CCCD);
+                    logger.log("Notifications enabled", true, 0);
+
+                    if (responseNeeded)
+                        gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset,
+                                GattTransport.EMPTY_VALUE);
+                    logger.setStatus(GattServerProfile.STATUS_CONNECTED);
+                }
+            });
         }
 
         @Override
-        public void onCharacteristicWriteRequest(BluetoothDevice device,
-                                                 int requestId, BluetoothGattCharacteristic characteristic,
-                                                 boolean preparedWrite, boolean responseNeeded,
-                                                 int offset, byte[] value) {
+        public void onCharacteristicWriteRequest(final BluetoothDevice device,
+                                                 final int requestId, BluetoothGattCharacteristic characteristic,
+                                                 final boolean preparedWrite, final boolean responseNeeded,
+                                                 final int offset, final byte[] value) {
+            trace(GattTrace.WRITE_REQUEST, device, (preparedWrite ? 1 : 0) | (responseNeeded ? 0 : 2),
+                    requestId, (value == null) ? 0 : value.length, offset);
 
             if (GattServerProfile.DATA_CHAR.equals(characteristic.getUuid())) {
-
-                if (value != null && value.length > 0) {
-                    if (firstPacket) {
-                        majByte = value[MAJOR_BYTE];
-                        minByte = value[MINOR_BYTE];
-                        dataLength = ((majByte & 0xff) << 8) | (minByte & 0xff);
-                        logger.setStatus(GattServerProfile.STATUS_WRITING_CHAR);
-                        logger.log("Data characteristic write request", true, 0);
-                        logger.log("Message length: " + dataLength, true, 0);
-                        logger.log("Receiving data: ", true, 1);
-                        firstPacket = false;
-                    }
-                    logger.log("*", false, 0);
-                    receiveCounter += value.length;
-                    if(responseNeeded) {
-                        gattServer.sendResponse(device,
-                                requestId,
-                                BluetoothGatt.GATT_SUCCESS,
-                                0,
-                                value);
+                eventLoop.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        engine.onWrite(device.getAddress(), requestId, preparedWrite, responseNeeded, offset, value);
                     }
-
-                    checkEndOfData();
-                }
+                });
             }
         }
 
-
-
-        private void checkEndOfData() {
-            if (receiveCounter >= dataLength) {
-                firstPacket = true;
-                receiveCounter = 0;
-                readFile();
-                logger.log("Client requesting data transfer", true, 1);
-                logger.log("", true, 0);
-                logger.log("Sending data:", true, 0);
-                logger.setStatus(GattServerProfile.STATUS_SENDING_DATA);
-            }
+        @Override
+        public void onExecuteWrite(final BluetoothDevice device, final int requestId, final boolean execute) {
+            trace(GattTrace.EXECUTE_WRITE, device, execute ? 1 : 0, requestId, 0, 0);
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    engine.onExecuteWrite(device.getAddress(), requestId, execute);
+                }
+            });
         }
 
         @Override
-        public void onNotificationSent(BluetoothDevice device, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                if (notifyReceiveCount % 8 == 0)
-                logger.log("*", false, 0);
-                logger.setStatus(GattServerProfile.STATUS_SENDING_DATA + ": " + notifyReceiveCount + " bytes");
-                sendData();
-            } else {
-                logger.log("Notification failure", false, 0);
-            }
+        public void onNotificationSent(final BluetoothDevice device, final int status) {
+            trace(GattTrace.NOTIFICATION_SENT, device, status, 0, 0, 0);
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    engine.onNotificationSent(device.getAddress(), status == BluetoothGatt.GATT_SUCCESS);
+                }
+            });
         }
     };
 }
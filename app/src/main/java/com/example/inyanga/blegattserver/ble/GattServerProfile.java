@@ -1,6 +1,6 @@
 package com.example.inyanga.blegattserver.ble;
 
-import android.bluetooth.BluetoothGattDescriptor;
+import com.example.inyanga.blegattserver.protocol.ProtocolLog;
 
 import java.util.UUID;
 
@@ -10,11 +10,38 @@ public class GattServerProfile {
     public static final UUID DATA_CHAR = UUID.fromString("F000C0E1-0451-4000-B000-000000000000");
     public static final UUID CCC_DESCRIPTOR = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
+    /**
+     * Keep advertising while centrals are connected so more can join and a dropped central can
+     * reconnect at once. Stacks that only allow one connection need false; advertising is then
+     * restarted when the central disconnects.
+     */
+    public static final boolean ADVERTISE_WHILE_CONNECTED = true;
+
+    /**
+     * Number of data characteristics buffered messages are striped across, see StripedSource.
+     * DATA_CHAR is stripe 0; stripe k is the notify-only characteristic dataChar(k). Centrals
+     * must enable notifications on every stripe. 1 keeps the single-characteristic profile.
+     */
+    public static final int DATA_STRIPES = 1;
+
+    public static UUID dataChar(int stripe) {
+        if (stripe == 0) return DATA_CHAR;
+        return UUID.fromString(String.format("F000C1%02X-0451-4000-B000-000000000000", stripe));
+    }
+
+    /**
+     * Records kept by a GATT event trace before it wraps around, 32 bytes each.
+     */
+    public static final int TRACE_CAPACITY = 64 * 1024;
+
+    public static final String DEFAULT_ASSET = "lorem";
+    public static final String[] ASSETS = {"lorem", "ble_data"};
+
     public static final String STATUS_ADVERTISING = "Advertising";
-    public static final String STATUS_CONNECTED = "Connected";
+    public static final String STATUS_CONNECTED = ProtocolLog.STATUS_CONNECTED;
     public static final String STATUS_DISCONNECTED = "Disconnected";
     public static final String STATUS_SERVER_STOPPED = "Server stopped";
-    public static final String STATUS_WRITING_CHAR = "Receiving data";
+    public static final String STATUS_WRITING_CHAR = ProtocolLog.STATUS_RECEIVING_DATA;
     public static final String STATUS_WRITING_CCCD = "Enabling notifications";
-    public static final String STATUS_SENDING_DATA = "Sending data";
+    public static final String STATUS_SENDING_DATA = ProtocolLog.STATUS_SENDING_DATA;
 }
@@ -1,30 +1,226 @@
 package com.example.inyanga.blegattserver.logger;
 
-public class Logger {
+import com.example.inyanga.blegattserver.protocol.ProtocolLog;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log pipeline that keeps the GATT callbacks free of UI work. Producers record events into a
+ * bounded lock-free ring buffer (multi-producer, single-consumer) without allocating; a single
+ * consumer thread drains it in batches at most once per frame, coalesces progress ticks and
+ * forwards one string per batch to the LoggerCallback. When the ring is full events are
+ * dropped and counted instead of blocking the caller.
+ */
+public class Logger implements ProtocolLog {
+
+    private static final int CAPACITY = 1024;
+    private static final int MASK = CAPACITY - 1;
+    private static final long FRAME_INTERVAL_NANOS = 33000000L;
+    private static final int MAX_PROGRESS_MARKS = 64;
+    private static final int PROGRESS = -1;
+
     private LoggerCallback loggerCallback;
 
+    private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private final String[] messages = new String[CAPACITY];
+    private final int[] lines = new int[CAPACITY];
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private long head;
+    private long reportedDrops;
+
+    private volatile String status;
+    private volatile long statusValue = -1;
+    private volatile boolean statusChanged;
+
+    private final StringBuilder batch = new StringBuilder();
+    private final Thread consumer;
+    private volatile boolean consumerIdle;
+    private volatile boolean closed;
+    private volatile boolean verbose = true;
 
 
     public Logger(LoggerCallback loggerCallback) {
         this.loggerCallback = loggerCallback;
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+        consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        }, "Logger");
+        consumer.setDaemon(true);
+        consumer.start();
     }
 
+    /**
+     * Ends the consumer thread. Events logged afterwards are discarded.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(consumer);
+    }
+
+    @Override
     public void log(String msg, boolean newLine, int emptyLines) {
+        if (closed) return;
         if (loggerCallback == null) throw new NullPointerException("Logger Callback does not set");
-        for (int i = 0; i < emptyLines; i++) {
-            loggerCallback.onLog("", true);
-        }
+        offer(msg, (emptyLines << 1) | (newLine ? 1 : 0));
+    }
+
+    @Override
+    public boolean isVerbose() {
+        return verbose;
+    }
+
+    /**
+     * Turns the per-transfer summaries of the protocol engine on or off.
+     */
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
 
-        loggerCallback.onLog(msg, newLine);
+    /**
+     * Records one progress tick. Consecutive ticks are printed as a single run of '*'.
+     */
+    @Override
+    public void progress() {
+        offer(null, PROGRESS);
     }
 
+    @Override
     public void setStatus(String status) {
-        loggerCallback.onStatus(status);
+        setStatus(status, -1);
     }
 
+    /**
+     * Sets a status with a byte count, formatted by the consumer so the caller does not have to
+     * build a new string for every update.
+     */
+    @Override
+    public void setStatus(String status, long bytes) {
+        this.statusValue = bytes;
+        this.status = status;
+        statusChanged = true;
+        wakeConsumer();
+    }
+
+    /**
+     * Starts the status animation. Safe to call repeatedly, e.g. on every reconnect.
+     */
     public void startUpdatingStatus() {
-        loggerCallback.statusUpdate();
+        loggerCallback.statusUpdate(true);
+    }
+
+    public void stopUpdatingStatus() {
+        loggerCallback.statusUpdate(false);
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /***********************************************************************************************
+     Ring buffer
+     **********************************************************************************************/
+
+    private void offer(String msg, int lineFlags) {
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & MASK;
+            long diff = sequences.get(index) - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    messages[index] = msg;
+                    lines[index] = lineFlags;
+                    // A volatile store, so the consumerIdle read below cannot move ahead of it
+                    sequences.set(index, position + 1);
+                    wakeConsumer();
+                    return;
+                }
+            } else if (diff < 0) {
+                dropped.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    private void wakeConsumer() {
+        if (consumerIdle) {
+            consumerIdle = false;
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Publishing an event and then reading consumerIdle pairs with setting consumerIdle and then
+     * checking the ring, so either the producer sees the consumer idle and unparks it or the
+     * consumer sees the event before it parks.
+     */
+    private void consume() {
+        while (!closed) {
+            if (drain()) {
+                LockSupport.parkNanos(FRAME_INTERVAL_NANOS);
+                continue;
+            }
+            consumerIdle = true;
+            if (isEmpty() && !statusChanged && !closed) LockSupport.park();
+            consumerIdle = false;
+        }
+    }
+
+    private boolean isEmpty() {
+        int index = (int) head & MASK;
+        return sequences.get(index) != head + 1;
     }
 
+    /**
+     * @return true if anything was forwarded to the callback
+     */
+    private boolean drain() {
+        int progressMarks = 0;
+        while (!isEmpty()) {
+            int index = (int) head & MASK;
+            String msg = messages[index];
+            int lineFlags = lines[index];
+            messages[index] = null;
+            sequences.lazySet(index, head + CAPACITY);
+            head++;
+
+            if (lineFlags == PROGRESS) {
+                if (progressMarks++ < MAX_PROGRESS_MARKS) batch.append('*');
+                continue;
+            }
+            progressMarks = 0;
+            for (int i = 0; i < lineFlags >> 1; i++) {
+                batch.append('\n');
+            }
+            batch.append(msg);
+            if ((lineFlags & 1) != 0) batch.append('\n');
+        }
+
+        long drops = dropped.get();
+        if (drops != reportedDrops) {
+            batch.append("\n[dropped ").append(drops - reportedDrops).append(" log events]\n");
+            reportedDrops = drops;
+        }
 
+        boolean forwarded = false;
+        if (batch.length() > 0) {
+            loggerCallback.onLog(batch.toString(), false);
+            batch.setLength(0);
+            forwarded = true;
+        }
+        if (statusChanged) {
+            statusChanged = false;
+            long bytes = statusValue;
+            loggerCallback.onStatus(bytes < 0 ? status : status + ": " + bytes + " bytes");
+            forwarded = true;
+        }
+        return forwarded;
+    }
 }
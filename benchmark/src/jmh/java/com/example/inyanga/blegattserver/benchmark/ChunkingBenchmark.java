@@ -0,0 +1,98 @@
+package com.example.inyanga.blegattserver.benchmark;
+
+import com.example.inyanga.blegattserver.protocol.ChunkCursor;
+import com.example.inyanga.blegattserver.protocol.ChunkSizeDistribution;
+import com.example.inyanga.blegattserver.protocol.MessageHeader;
+import com.example.inyanga.blegattserver.protocol.PacketBuffer;
+import com.example.inyanga.blegattserver.protocol.ShapedSource;
+import com.example.inyanga.blegattserver.protocol.StreamChunkSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Outbound packetization: cutting a whole framed message into notification-sized packets, the
+ * work prepareData() used to do up front. One operation is one complete message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+public class ChunkingBenchmark {
+
+    @Param({"100", "4096", "65536", "1048576", "4194304"})
+    public int payloadSize;
+
+    @Param({"20", "182", "244", "512"})
+    public int packetSize;
+
+    private ByteBuffer heapMessage;
+    private ByteBuffer directMessage;
+    private byte[] payload;
+    private final PacketBuffer packets = new PacketBuffer();
+    private ChunkCursor cursor;
+    private Random random;
+
+    @Setup
+    public void setUp() {
+        payload = new byte[payloadSize];
+        new Random(1).nextBytes(payload);
+        byte[] message = new byte[MessageHeader.SIZE_V2 + payloadSize];
+        MessageHeader.write(message, MessageHeader.VERSION_2, payloadSize);
+        System.arraycopy(payload, 0, message, MessageHeader.SIZE_V2, payloadSize);
+        heapMessage = ByteBuffer.wrap(message);
+        directMessage = ByteBuffer.allocateDirect(message.length);
+        directMessage.put(message).flip();
+        cursor = new ChunkCursor(packets);
+        random = new Random(1);
+    }
+
+    @Benchmark
+    public void heapCursor(Blackhole blackhole) {
+        cursor.reset(heapMessage);
+        byte[] packet;
+        while ((packet = cursor.next(packetSize)) != null) {
+            blackhole.consume(packet);
+        }
+    }
+
+    @Benchmark
+    public void directCursor(Blackhole blackhole) {
+        cursor.reset(directMessage);
+        byte[] packet;
+        while ((packet = cursor.next(packetSize)) != null) {
+            blackhole.consume(packet);
+        }
+    }
+
+    /**
+     * Randomly sized packets, as sent by the load generator with a uniform distribution.
+     */
+    @Benchmark
+    public void shapedSource(Blackhole blackhole) {
+        ShapedSource source = new ShapedSource(heapMessage, ChunkSizeDistribution.uniform(1, packetSize),
+                random, 0, 0);
+        byte[] packet;
+        while ((packet = source.next(packetSize)) != null) {
+            blackhole.consume(packet);
+        }
+    }
+
+    @Benchmark
+    public void streamSource(Blackhole blackhole) {
+        StreamChunkSource source = new StreamChunkSource(new ByteArrayInputStream(payload),
+                payloadSize, 4096, packets);
+        byte[] packet;
+        while ((packet = source.next(packetSize)) != null) {
+            blackhole.consume(packet);
+        }
+    }
+}
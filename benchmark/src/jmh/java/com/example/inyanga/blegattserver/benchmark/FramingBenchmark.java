@@ -0,0 +1,57 @@
+package com.example.inyanga.blegattserver.benchmark;
+
+import com.example.inyanga.blegattserver.protocol.MessageHeader;
+import com.example.inyanga.blegattserver.protocol.PayloadCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Building the framed v1 message for a request, the work readFile() did on every request:
+ * a cold load that reads and frames the payload, and a warm PayloadCache hit.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+public class FramingBenchmark {
+
+    @Param({"100", "4096", "15000", "65535"})
+    public int payloadSize;
+
+    private PayloadCache.Loader loader;
+    private PayloadCache warmCache;
+
+    @Setup
+    public void setUp() throws IOException {
+        final byte[] payload = new byte[payloadSize];
+        new Random(1).nextBytes(payload);
+        loader = new PayloadCache.Loader() {
+            @Override
+            public InputStream open(String name) {
+                return new ByteArrayInputStream(payload);
+            }
+        };
+        warmCache = new PayloadCache(loader, 1024 * 1024);
+        warmCache.get("payload", MessageHeader.VERSION_1);
+    }
+
+    @Benchmark
+    public ByteBuffer coldLoad() throws IOException {
+        return new PayloadCache(loader, 0).get("payload", MessageHeader.VERSION_1);
+    }
+
+    @Benchmark
+    public ByteBuffer cacheHit() throws IOException {
+        return warmCache.get("payload", MessageHeader.VERSION_1);
+    }
+}
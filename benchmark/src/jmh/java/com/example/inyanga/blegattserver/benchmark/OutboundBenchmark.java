@@ -0,0 +1,103 @@
+package com.example.inyanga.blegattserver.benchmark;
+
+import com.example.inyanga.blegattserver.protocol.GattTransport;
+import com.example.inyanga.blegattserver.protocol.MessageHeader;
+import com.example.inyanga.blegattserver.protocol.ProtocolEngine;
+import com.example.inyanga.blegattserver.protocol.ProtocolLog;
+import com.example.inyanga.blegattserver.protocol.TransferSession;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * The whole engine-side send path for one message: scheduling, the notification window,
+ * packetization and completion bookkeeping, against a transport that confirms every
+ * notification immediately.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+public class OutboundBenchmark {
+
+    private static final String ADDRESS = "00:00:00:00:00:00";
+
+    @Param({"100", "4096", "65536", "1048576"})
+    public int payloadSize;
+
+    @Param({"23", "185", "247", "515"})
+    public int mtu;
+
+    private ProtocolEngine engine;
+    private TransferSession session;
+    private ByteBuffer message;
+    private int pending;
+
+    @Setup
+    public void setUp() {
+        byte[] bytes = new byte[MessageHeader.SIZE_V2 + payloadSize];
+        new Random(1).nextBytes(bytes);
+        MessageHeader.write(bytes, MessageHeader.VERSION_2, payloadSize);
+        message = ByteBuffer.wrap(bytes);
+
+        engine = new ProtocolEngine(new GattTransport() {
+            @Override
+            public boolean notify(String address, int stripe, byte[] value) {
+                pending++;
+                return true;
+            }
+
+            @Override
+            public void sendResponse(String address, int requestId, int status, int offset, byte[] value) {
+            }
+
+            @Override
+            public void postDelayed(Runnable task, long delayMillis) {
+            }
+        }, new SilentLog(), null);
+        engine.setNotificationWindow(8, 8);
+        session = engine.onConnected(ADDRESS);
+        engine.onMtuChanged(ADDRESS, mtu);
+    }
+
+    @Benchmark
+    public int sendMessage() {
+        engine.send(session, message);
+        int sent = 0;
+        while (pending > 0) {
+            pending--;
+            sent++;
+            engine.onNotificationSent(ADDRESS, true);
+        }
+        return sent;
+    }
+
+    private static class SilentLog implements ProtocolLog {
+        @Override
+        public void log(String msg, boolean newLine, int emptyLines) {
+        }
+
+        @Override
+        public boolean isVerbose() {
+            return false;
+        }
+
+        @Override
+        public void progress() {
+        }
+
+        @Override
+        public void setStatus(String status) {
+        }
+
+        @Override
+        public void setStatus(String status, long bytes) {
+        }
+    }
+}
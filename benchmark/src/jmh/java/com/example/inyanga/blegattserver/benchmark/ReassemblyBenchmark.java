@@ -0,0 +1,74 @@
+package com.example.inyanga.blegattserver.benchmark;
+
+import com.example.inyanga.blegattserver.protocol.BufferPool;
+import com.example.inyanga.blegattserver.protocol.InboundAssembler;
+import com.example.inyanga.blegattserver.protocol.MessageHandler;
+import com.example.inyanga.blegattserver.protocol.MessageHeader;
+import com.example.inyanga.blegattserver.protocol.TransferSession;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Inbound receive path, the part of onCharacteristicWriteRequest() that used to end in
+ * checkEndOfData(): reassembling one framed message from write-sized packets and handing it
+ * to the message handler.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+public class ReassemblyBenchmark {
+
+    @Param({"100", "4096", "65536", "1048576", "4194304"})
+    public int payloadSize;
+
+    @Param({"20", "182", "244", "512"})
+    public int packetSize;
+
+    private byte[][] writes;
+    private InboundAssembler assembler;
+    private TransferSession session;
+    private Blackhole blackhole;
+
+    private final MessageHandler handler = new MessageHandler() {
+        @Override
+        public void onMessage(TransferSession session, byte version, ByteBuffer payload) {
+            blackhole.consume(payload.get(payload.limit() - 1));
+        }
+    };
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        byte[] message = new byte[MessageHeader.SIZE_V2 + payloadSize];
+        new Random(1).nextBytes(message);
+        MessageHeader.write(message, MessageHeader.VERSION_2, payloadSize);
+
+        int count = (message.length + packetSize - 1) / packetSize;
+        writes = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            int start = i * packetSize;
+            writes[i] = new byte[Math.min(packetSize, message.length - start)];
+            System.arraycopy(message, start, writes[i], 0, writes[i].length);
+        }
+        BufferPool pool = new BufferPool(8 * 1024 * 1024, 2);
+        assembler = new InboundAssembler(pool, 8 * 1024 * 1024, 4096);
+        session = new TransferSession("00:00:00:00:00:00", assembler);
+    }
+
+    @Benchmark
+    public void reassemble() {
+        for (byte[] write : writes) {
+            if (assembler.onWrite(write) == InboundAssembler.STATUS_COMPLETE)
+                assembler.dispatch(session, handler);
+        }
+    }
+}
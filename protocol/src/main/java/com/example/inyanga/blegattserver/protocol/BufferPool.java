@@ -0,0 +1,54 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reuses receive buffers between messages. Buffers are handed out in power-of-two size classes
+ * and at most maxPerClass idle buffers are kept per class; larger requests than the biggest
+ * class are allocated and dropped on release.
+ */
+public class BufferPool {
+
+    private static final int MIN_SHIFT = 6;
+
+    private final List<ArrayDeque<byte[]>> classes;
+    private final int maxPerClass;
+
+    public BufferPool(int maxBufferSize, int maxPerClass) {
+        int count = classIndex(Math.max(maxBufferSize, 1 << MIN_SHIFT)) + 1;
+        this.classes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            classes.add(new ArrayDeque<byte[]>());
+        }
+        this.maxPerClass = maxPerClass;
+    }
+
+    /**
+     * @return a buffer of at least size bytes; its contents are undefined
+     */
+    public byte[] acquire(int size) {
+        int index = classIndex(size);
+        if (index >= classes.size()) return new byte[size];
+        synchronized (this) {
+            byte[] buffer = classes.get(index).pollFirst();
+            if (buffer != null) return buffer;
+        }
+        return new byte[1 << (index + MIN_SHIFT)];
+    }
+
+    public void release(byte[] buffer) {
+        int index = classIndex(buffer.length);
+        if (index >= classes.size() || buffer.length != 1 << (index + MIN_SHIFT)) return;
+        synchronized (this) {
+            ArrayDeque<byte[]> idle = classes.get(index);
+            if (idle.size() < maxPerClass) idle.addFirst(buffer);
+        }
+    }
+
+    private static int classIndex(int size) {
+        if (size <= 1 << MIN_SHIFT) return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+}
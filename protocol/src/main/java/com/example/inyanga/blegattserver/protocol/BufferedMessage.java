@@ -0,0 +1,29 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Resumable view of a framed message held in memory, e.g. a {@link PayloadCache} entry.
+ */
+public class BufferedMessage implements ResumableMessage {
+
+    private final ByteBuffer message;
+
+    public BufferedMessage(ByteBuffer message) {
+        this.message = message.duplicate();
+    }
+
+    @Override
+    public ChunkSource open(PacketBuffer packets, long offset) {
+        ByteBuffer tail = message.duplicate();
+        tail.position((int) Math.min(offset, tail.limit()));
+        ChunkCursor cursor = new ChunkCursor(packets);
+        cursor.reset(tail);
+        return cursor;
+    }
+
+    @Override
+    public long length() {
+        return message.remaining();
+    }
+}
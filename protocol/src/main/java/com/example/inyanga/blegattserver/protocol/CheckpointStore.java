@@ -0,0 +1,78 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded retention for {@link TransferCheckpoint}s: at most maxEntries are kept, least
+ * recently used first out, and none older than maxAgeMillis since it last made progress.
+ * Completed transfers are kept too, as the last notifications may not have reached the central.
+ * Checkpoints are keyed by device address and transfer ID, so a central only ever finds the
+ * transfers it started itself.
+ */
+public class CheckpointStore {
+
+    private final int maxEntries;
+    private final long maxAgeNanos;
+    private final LinkedHashMap<Key, TransferCheckpoint> checkpoints =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    public CheckpointStore(int maxEntries, long maxAgeMillis) {
+        this.maxEntries = maxEntries;
+        this.maxAgeNanos = maxAgeMillis * 1000000L;
+    }
+
+    public void put(TransferCheckpoint checkpoint, long now) {
+        checkpoints.put(new Key(checkpoint.getAddress(), checkpoint.getTransferId()), checkpoint);
+        expire(now);
+    }
+
+    /**
+     * @return the checkpoint of the central at address, or null if it is unknown or has expired
+     */
+    public TransferCheckpoint get(String address, int transferId, long now) {
+        expire(now);
+        return checkpoints.get(new Key(address, transferId));
+    }
+
+    public int size() {
+        return checkpoints.size();
+    }
+
+    public void clear() {
+        checkpoints.clear();
+    }
+
+    private void expire(long now) {
+        Iterator<Map.Entry<Key, TransferCheckpoint>> eldest = checkpoints.entrySet().iterator();
+        while (eldest.hasNext()) {
+            TransferCheckpoint checkpoint = eldest.next().getValue();
+            if (checkpoints.size() > maxEntries || now - checkpoint.getTouchedAt() > maxAgeNanos)
+                eldest.remove();
+        }
+    }
+
+    private static final class Key {
+
+        private final String address;
+        private final int transferId;
+
+        Key(String address, int transferId) {
+            this.address = address;
+            this.transferId = transferId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return transferId == other.transferId && address.equals(other.address);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * address.hashCode() + transferId;
+        }
+    }
+}
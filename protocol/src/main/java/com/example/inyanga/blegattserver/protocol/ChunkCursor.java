@@ -0,0 +1,51 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cuts an outbound message into packets on demand instead of splitting it up front.
+ * The cursor reads from a single backing buffer (heap or direct) and copies every packet into
+ * a scratch array it owns, so one cursor per connection serves all transfers without
+ * allocating per packet.
+ */
+public class ChunkCursor implements ChunkSource {
+
+    private final PacketBuffer packets;
+    private ByteBuffer buffer;
+
+    public ChunkCursor(PacketBuffer packets) {
+        this.packets = packets;
+    }
+
+    public void reset(ByteBuffer payload) {
+        buffer = (payload == null) ? null : payload.duplicate();
+    }
+
+    @Override
+    public boolean hasRemaining() {
+        return buffer != null && buffer.hasRemaining();
+    }
+
+    public int remaining() {
+        return (buffer == null) ? 0 : buffer.remaining();
+    }
+
+    public int position() {
+        return (buffer == null) ? 0 : buffer.position();
+    }
+
+    @Override
+    public byte[] next(int packetSize) {
+        int length = Math.min(packetSize, remaining());
+        if (length <= 0) return null;
+
+        byte[] dst = packets.obtain(length, packetSize);
+        buffer.get(dst, 0, length);
+        return dst;
+    }
+
+    @Override
+    public void close() {
+        buffer = null;
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import java.util.Random;
+
+/**
+ * Packet sizes a {@link ShapedSource} cuts a message into, to exercise a central's reassembly
+ * with traffic it would rarely see from a well-behaved stack. Sizes are always clipped to
+ * 1..packetSize of the session.
+ */
+public abstract class ChunkSizeDistribution {
+
+    /**
+     * @return size of the next packet, between 1 and packetSize
+     */
+    public abstract int next(Random random, int packetSize);
+
+    static int clip(int size, int packetSize) {
+        return Math.max(1, Math.min(size, packetSize));
+    }
+
+    /**
+     * Full packets, as sent outside load tests.
+     */
+    public static ChunkSizeDistribution full() {
+        return fixed(Integer.MAX_VALUE);
+    }
+
+    public static ChunkSizeDistribution fixed(final int size) {
+        return new ChunkSizeDistribution() {
+            @Override
+            public int next(Random random, int packetSize) {
+                return clip(size, packetSize);
+            }
+
+            @Override
+            public String toString() {
+                return (size == Integer.MAX_VALUE) ? "full" : "fixed " + size;
+            }
+        };
+    }
+
+    /**
+     * Sizes from min to max inclusive with equal probability; uniform(1, 19) is what the old
+     * emulated-data mode sent at the default MTU.
+     */
+    public static ChunkSizeDistribution uniform(final int min, final int max) {
+        return new ChunkSizeDistribution() {
+            @Override
+            public int next(Random random, int packetSize) {
+                int high = clip(max, packetSize);
+                int low = Math.min(clip(min, packetSize), high);
+                return low + random.nextInt(high - low + 1);
+            }
+
+            @Override
+            public String toString() {
+                return "uniform " + min + "-" + max;
+            }
+        };
+    }
+
+    /**
+     * Mostly small packets with occasional large ones, or the other way round.
+     *
+     * @param smallShare probability of a small packet
+     */
+    public static ChunkSizeDistribution bimodal(final int small, final int large, final double smallShare) {
+        return new ChunkSizeDistribution() {
+            @Override
+            public int next(Random random, int packetSize) {
+                return clip(random.nextDouble() < smallShare ? small : large, packetSize);
+            }
+
+            @Override
+            public String toString() {
+                return "bimodal " + small + "/" + large + " (" + Math.round(smallShare * 100) + "% small)";
+            }
+        };
+    }
+
+    /**
+     * Sizes at the edges reassembly code gets wrong: single bytes, packets that end inside or
+     * just after a message header, and full or almost full packets.
+     */
+    public static ChunkSizeDistribution mtuEdge() {
+        return new ChunkSizeDistribution() {
+            @Override
+            public int next(Random random, int packetSize) {
+                switch (random.nextInt(8)) {
+                    case 0:
+                        return 1;
+                    case 1:
+                        return clip(2, packetSize);
+                    case 2:
+                        return clip(MessageHeader.SIZE_V1 - 1, packetSize);
+                    case 3:
+                        return clip(MessageHeader.SIZE_V1 + 1, packetSize);
+                    case 4:
+                        return clip(MessageHeader.SIZE_V2 + 1, packetSize);
+                    case 5:
+                        return clip(packetSize - 1, packetSize);
+                    default:
+                        return packetSize;
+                }
+            }
+
+            @Override
+            public String toString() {
+                return "mtu-edge";
+            }
+        };
+    }
+}
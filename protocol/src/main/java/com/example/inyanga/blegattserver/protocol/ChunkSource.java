@@ -0,0 +1,17 @@
+package com.example.inyanga.blegattserver.protocol;
+
+/**
+ * Outbound message cut into packets on demand. The array returned by next() is only valid until
+ * the following call.
+ */
+public interface ChunkSource {
+
+    boolean hasRemaining();
+
+    /**
+     * @return the next packet of at most packetSize bytes, or null once the message is exhausted
+     */
+    byte[] next(int packetSize);
+
+    void close();
+}
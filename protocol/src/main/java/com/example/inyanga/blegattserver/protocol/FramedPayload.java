@@ -0,0 +1,70 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Resumable message that frames a raw payload buffer on the fly, so a host app can send its own
+ * heap, direct or mapped buffer without copying it behind a header. The message is framed in
+ * the given protocol version, or in v2 if the payload is too long for v1.
+ */
+public class FramedPayload implements ResumableMessage {
+
+    private final byte[] header;
+    private final ByteBuffer payload;
+
+    public FramedPayload(ByteBuffer payload, byte version) {
+        long length = payload.remaining();
+        if (length > MessageHeader.maxLength(version)) version = MessageHeader.VERSION_2;
+        version = MessageHeader.version(version);
+        this.header = new byte[MessageHeader.size(version)];
+        MessageHeader.write(header, version, length);
+        this.payload = payload.slice();
+    }
+
+    @Override
+    public ChunkSource open(PacketBuffer packets, long offset) {
+        return new Source(packets, offset);
+    }
+
+    @Override
+    public long length() {
+        return header.length + payload.capacity();
+    }
+
+    private class Source implements ChunkSource {
+
+        private final PacketBuffer packets;
+        private final ByteBuffer data = payload.duplicate();
+        private int headerPosition;
+
+        Source(PacketBuffer packets, long offset) {
+            this.packets = packets;
+            headerPosition = (int) Math.min(offset, header.length);
+            data.position((int) Math.min(offset - headerPosition, data.limit()));
+        }
+
+        @Override
+        public boolean hasRemaining() {
+            return headerPosition < header.length || data.hasRemaining();
+        }
+
+        @Override
+        public byte[] next(int packetSize) {
+            int fromHeader = Math.min(packetSize, header.length - headerPosition);
+            int length = fromHeader + Math.min(packetSize - fromHeader, data.remaining());
+            if (length <= 0) return null;
+
+            byte[] dst = packets.obtain(length, packetSize);
+            System.arraycopy(header, headerPosition, dst, 0, fromHeader);
+            headerPosition += fromHeader;
+            data.get(dst, fromHeader, length - fromHeader);
+            return dst;
+        }
+
+        @Override
+        public void close() {
+            headerPosition = header.length;
+            data.position(data.limit());
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opt-in binary trace of GATT events for offline throughput analysis. Every event is a fixed
+ * 32-byte record written into a memory-mapped file that wraps around after capacity records, so
+ * recording costs a slot reservation and a few absolute puts and never blocks or allocates. It
+ * is safe to record from binder threads and the event loop at once. {@link GattTraceAnalyzer}
+ * reads the file back.
+ * <pre>
+ * header: magic (4) | format (2) | record size (2) | capacity (4) | 0 (4) | records written (8)
+ *         | wall clock at open, ms (8)
+ * record: ns since open (8) | type (1) | status (1) | device address (6) | arg0 (4) | arg1 (4)
+ *         | arg2 (8)
+ * </pre>
+ * Integers are big-endian. The arguments depend on the type, see the type constants.
+ */
+public class GattTrace implements Closeable {
+
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_SIZE = 32;
+    public static final int MAGIC = 0x47545243; //"GTRC"
+    public static final short FORMAT = 1;
+
+    /** status: GATT status */
+    public static final byte CONNECTED = 1;
+    /** status: GATT status */
+    public static final byte DISCONNECTED = 2;
+    /** arg0: MTU */
+    public static final byte MTU_CHANGED = 3;
+    /** arg0: request ID, arg1: value length, arg2: offset; status: 1 if prepared, 2 if no response */
+    public static final byte WRITE_REQUEST = 4;
+    /** arg0: request ID; status: 1 to execute */
+    public static final byte EXECUTE_WRITE = 5;
+    /** arg0: request ID, arg1: value length */
+    public static final byte DESCRIPTOR_WRITE = 6;
+    /** arg0: packet length, arg1: stripe; status: 1 if the stack accepted it */
+    public static final byte NOTIFY = 7;
+    /** status: GATT status */
+    public static final byte NOTIFICATION_SENT = 8;
+    /** arg0: packet size */
+    public static final byte TRANSFER_START = 9;
+    /** arg0: bytes sent, arg2: transfer time in ns; status: 1 if the transfer was aborted */
+    public static final byte TRANSFER_END = 10;
+
+    private static final int COUNT_OFFSET = 16;
+    private static final int WALL_CLOCK_OFFSET = 24;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong written = new AtomicLong();
+
+    public GattTrace(File file, int capacity) throws IOException {
+        this.capacity = capacity;
+        this.file = new RandomAccessFile(file, "rw");
+        long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        this.file.setLength(size);
+        this.buffer = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.putInt(0, MAGIC);
+        buffer.putShort(4, FORMAT);
+        buffer.putShort(6, (short) RECORD_SIZE);
+        buffer.putInt(8, capacity);
+        buffer.putInt(12, 0);
+        buffer.putLong(COUNT_OFFSET, 0);
+        buffer.putLong(WALL_CLOCK_OFFSET, System.currentTimeMillis());
+    }
+
+    public void record(byte type, String address, int status) {
+        record(type, address, status, 0, 0, 0);
+    }
+
+    public void record(byte type, String address, int status, int arg0, int arg1, long arg2) {
+        long time = System.nanoTime() - startNanos;
+        long sequence = written.getAndIncrement();
+        int position = HEADER_SIZE + (int) (sequence % capacity) * RECORD_SIZE;
+        buffer.putLong(position, time);
+        buffer.put(position + 8, type);
+        buffer.put(position + 9, (byte) status);
+        putAddress(position + 10, address);
+        buffer.putInt(position + 16, arg0);
+        buffer.putInt(position + 20, arg1);
+        buffer.putLong(position + 24, arg2);
+        buffer.putLong(COUNT_OFFSET, sequence + 1);
+    }
+
+    public long getRecordCount() {
+        return written.get();
+    }
+
+    /**
+     * Writes the trace to storage. Records made while closing may be lost.
+     */
+    @Override
+    public void close() throws IOException {
+        buffer.putLong(COUNT_OFFSET, written.get());
+        buffer.force();
+        file.close();
+    }
+
+    /**
+     * Parses a "AA:BB:CC:DD:EE:FF" address without allocating; anything else is stored as 0.
+     */
+    private void putAddress(int position, String address) {
+        boolean valid = address != null && address.length() == 17;
+        for (int i = 0; i < 6; i++) {
+            int high = valid ? Character.digit(address.charAt(i * 3), 16) : 0;
+            int low = valid ? Character.digit(address.charAt(i * 3 + 1), 16) : 0;
+            buffer.put(position + i, (byte) (high << 4 | low));
+        }
+    }
+
+    /***********************************************************************************************
+     Reading
+     **********************************************************************************************/
+
+    public static class Record {
+        public final long nanos;
+        public final byte type;
+        public final int status;
+        public final String address;
+        public final int arg0;
+        public final int arg1;
+        public final long arg2;
+
+        Record(long nanos, byte type, int status, String address, int arg0, int arg1, long arg2) {
+            this.nanos = nanos;
+            this.type = type;
+            this.status = status;
+            this.address = address;
+            this.arg0 = arg0;
+            this.arg1 = arg1;
+            this.arg2 = arg2;
+        }
+    }
+
+    /**
+     * @return the records still in the file, oldest first
+     */
+    public static List<Record> read(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+                throw new IOException(file + " is not a GATT trace");
+            if (buffer.getShort(4) != FORMAT || buffer.getShort(6) != RECORD_SIZE)
+                throw new IOException("Unsupported trace format " + buffer.getShort(4));
+            int capacity = buffer.getInt(8);
+            long written = buffer.getLong(COUNT_OFFSET);
+            int count = (int) Math.min(written, capacity);
+            // After wrapping, the oldest record is the one after the last written
+            int first = (written > capacity) ? (int) (written % capacity) : 0;
+            List<Record> records = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int position = HEADER_SIZE + ((first + i) % capacity) * RECORD_SIZE;
+                records.add(new Record(buffer.getLong(position), buffer.get(position + 8),
+                        buffer.get(position + 9) & 0xFF, address(buffer, position + 10),
+                        buffer.getInt(position + 16), buffer.getInt(position + 20),
+                        buffer.getLong(position + 24)));
+            }
+            // Threads that recorded at once may have filled their slots out of order
+            Collections.sort(records, new Comparator<Record>() {
+                @Override
+                public int compare(Record a, Record b) {
+                    return (a.nanos < b.nanos) ? -1 : (a.nanos == b.nanos) ? 0 : 1;
+                }
+            });
+            return records;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return wall clock time in milliseconds at which the trace was opened
+     */
+    public static long readStartMillis(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.seek(WALL_CLOCK_OFFSET);
+            return in.readLong();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String address(ByteBuffer buffer, int position) {
+        StringBuilder builder = new StringBuilder(17);
+        for (int i = 0; i < 6; i++) {
+            if (i > 0) builder.append(':');
+            int value = buffer.get(position + i) & 0xFF;
+            builder.append(Character.toUpperCase(Character.forDigit(value >> 4, 16)))
+                    .append(Character.toUpperCase(Character.forDigit(value & 0xF, 16)));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,179 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Offline analysis of a {@link GattTrace}: the timeline of every transfer, the gaps between
+ * confirmed notifications within transfers and the stalls among them. Pull the trace from the
+ * phone and run it on any JVM:
+ * <pre>
+ * java -cp protocol.jar com.example.inyanga.blegattserver.protocol.GattTraceAnalyzer gatt.trace [stall ms]
+ * </pre>
+ */
+public class GattTraceAnalyzer {
+
+    public static final long DEFAULT_STALL_MILLIS = 50;
+    private static final int MAX_REPORTED_STALLS = 20;
+
+    public static class Transfer {
+        public final String address;
+        public final long startNanos;
+        public final int packetSize;
+        public long endNanos = -1;
+        public int notifications;
+        public int rejected;
+        public int failures;
+        public long bytes;
+        public long maxGapNanos;
+        public int stalls;
+
+        Transfer(String address, long startNanos, int packetSize) {
+            this.address = address;
+            this.startNanos = startNanos;
+            this.packetSize = packetSize;
+        }
+
+        /**
+         * @return false if the central disconnected or the trace ended first
+         */
+        public boolean isComplete() {
+            return endNanos >= 0;
+        }
+    }
+
+    public static class Stall {
+        public final String address;
+        public final long startNanos;
+        public final long gapNanos;
+
+        Stall(String address, long startNanos, long gapNanos) {
+            this.address = address;
+            this.startNanos = startNanos;
+            this.gapNanos = gapNanos;
+        }
+    }
+
+    private final long stallNanos;
+    private final List<Transfer> transfers = new ArrayList<>();
+    private final List<Stall> stalls = new ArrayList<>();
+    private final LatencyHistogram notificationGaps = new LatencyHistogram();
+
+    public GattTraceAnalyzer(List<GattTrace.Record> records, long stallMillis) {
+        this.stallNanos = stallMillis * 1000000;
+        Map<String, Transfer> open = new HashMap<>();
+        Map<String, Long> lastSent = new HashMap<>();
+        for (GattTrace.Record record : records) {
+            Transfer transfer = open.get(record.address);
+            switch (record.type) {
+                case GattTrace.TRANSFER_START:
+                    transfer = new Transfer(record.address, record.nanos, record.arg0);
+                    transfers.add(transfer);
+                    open.put(record.address, transfer);
+                    lastSent.remove(record.address);
+                    break;
+                case GattTrace.TRANSFER_END:
+                    if (transfer != null) transfer.endNanos = record.nanos;
+                    open.remove(record.address);
+                    break;
+                case GattTrace.NOTIFY:
+                    if (transfer == null) break;
+                    if (record.status != 0) {
+                        transfer.notifications++;
+                        transfer.bytes += record.arg0;
+                    } else {
+                        transfer.rejected++;
+                    }
+                    break;
+                case GattTrace.NOTIFICATION_SENT:
+                    if (transfer == null) break;
+                    if (record.status != 0) transfer.failures++;
+                    Long previous = lastSent.put(record.address, record.nanos);
+                    if (previous != null) onGap(transfer, previous, record.nanos - previous);
+                    break;
+                case GattTrace.DISCONNECTED:
+                    open.remove(record.address);
+                    lastSent.remove(record.address);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void onGap(Transfer transfer, long start, long gap) {
+        notificationGaps.record(gap / 1000);
+        transfer.maxGapNanos = Math.max(transfer.maxGapNanos, gap);
+        if (gap >= stallNanos) {
+            transfer.stalls++;
+            stalls.add(new Stall(transfer.address, start, gap));
+        }
+    }
+
+    public List<Transfer> getTransfers() {
+        return transfers;
+    }
+
+    public List<Stall> getStalls() {
+        return stalls;
+    }
+
+    /**
+     * Time between consecutive confirmed notifications of a transfer, in microseconds.
+     */
+    public LatencyHistogram getNotificationGaps() {
+        return notificationGaps;
+    }
+
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        report.append("Transfers: ").append(transfers.size()).append('\n');
+        for (int i = 0; i < transfers.size(); i++) {
+            Transfer transfer = transfers.get(i);
+            String duration = transfer.isComplete()
+                    ? millis(transfer.endNanos - transfer.startNanos) + " ms" : "incomplete";
+            long rate = transfer.isComplete()
+                    ? transfer.bytes * 1000000000L / Math.max(1, transfer.endNanos - transfer.startNanos) : 0;
+            report.append(String.format(Locale.US,
+                    "#%d %s at +%s ms: %s, %d B in %d notifications of <= %d B (%d rejected, %d failed), "
+                            + "%d B/s, max gap %s ms, %d stalls%n",
+                    i + 1, transfer.address, millis(transfer.startNanos), duration, transfer.bytes,
+                    transfer.notifications, transfer.packetSize, transfer.rejected, transfer.failures,
+                    rate, millis(transfer.maxGapNanos), transfer.stalls));
+        }
+        report.append(String.format(Locale.US,
+                "Notification gap us p50/p90/p99/max: %d/%d/%d/%d%n",
+                notificationGaps.getPercentile(50), notificationGaps.getPercentile(90),
+                notificationGaps.getPercentile(99), notificationGaps.getMax()));
+        report.append("Stalls of ").append(stallNanos / 1000000).append(" ms or more: ")
+                .append(stalls.size()).append('\n');
+        for (int i = 0; i < Math.min(stalls.size(), MAX_REPORTED_STALLS); i++) {
+            Stall stall = stalls.get(i);
+            report.append(String.format(Locale.US, "  +%s ms %s: %s ms without a confirmed notification%n",
+                    millis(stall.startNanos), stall.address, millis(stall.gapNanos)));
+        }
+        return report.toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.US, "%.3f", nanos / 1e6);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: GattTraceAnalyzer <trace file> [stall ms]");
+            System.exit(2);
+        }
+        File file = new File(args[0]);
+        long stallMillis = (args.length > 1) ? Long.parseLong(args[1]) : DEFAULT_STALL_MILLIS;
+        List<GattTrace.Record> records = GattTrace.read(file);
+        System.out.println(records.size() + " records from " + new Date(GattTrace.readStartMillis(file)));
+        System.out.print(new GattTraceAnalyzer(records, stallMillis).report());
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.inyanga.blegattserver.protocol;
+
+/**
+ * What the protocol engine needs from the link layer. The Android implementation wraps
+ * BluetoothGattServer; LoopbackTransport simulates a link inside the JVM. Status codes use the
+ * same values as android.bluetooth.BluetoothGatt.
+ */
+public interface GattTransport {
+
+    int GATT_SUCCESS = 0;
+    int GATT_INVALID_OFFSET = 0x07;
+    int GATT_INVALID_ATTRIBUTE_LENGTH = 0x0d;
+    int GATT_FAILURE = 0x101;
+
+    /**
+     * Value of write responses. Only prepared writes have to echo what they queued.
+     */
+    byte[] EMPTY_VALUE = new byte[0];
+
+    /**
+     * Sends value as a notification of a data characteristic; stripe 0 is the main one, higher
+     * stripes only exist with a striped profile ({@link StripedSource}). The array may be reused
+     * by the caller as soon as this method returns.
+     *
+     * @return false if the link did not accept the notification
+     */
+    boolean notify(String address, int stripe, byte[] value);
+
+    void sendResponse(String address, int requestId, int status, int offset, byte[] value);
+
+    /**
+     * Runs task on the event loop that delivers all other engine calls. May be called from any
+     * thread.
+     */
+    void postDelayed(Runnable task, long delayMillis);
+}
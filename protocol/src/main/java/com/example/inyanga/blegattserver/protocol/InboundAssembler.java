@@ -0,0 +1,148 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reassembles one inbound message per session. The header of the first write announces the
+ * payload length and a pooled buffer of that size is taken for the payload; every following
+ * write is copied straight into it. Prepared (long) writes are queued until the central
+ * executes or cancels them. Not thread safe; callers serialize access per session.
+ */
+public class InboundAssembler {
+
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_COMPLETE = 1;
+    public static final int STATUS_BAD_HEADER = -1;
+    public static final int STATUS_TOO_LONG = -2;
+    public static final int STATUS_INVALID_OFFSET = -3;
+
+    private final BufferPool pool;
+    private final int maxMessageLength;
+    private final int maxPreparedLength;
+
+    private byte version;
+    private byte[] buffer;
+    private int dataLength;
+    private int position;
+    private byte[] completed;
+    private int completedLength;
+
+    private final List<byte[]> preparedValues = new ArrayList<>();
+    private int preparedLength;
+
+    public InboundAssembler(BufferPool pool, int maxMessageLength, int maxPreparedLength) {
+        this.pool = pool;
+        this.maxMessageLength = maxMessageLength;
+        this.maxPreparedLength = maxPreparedLength;
+    }
+
+    /**
+     * @return true if no message is being received
+     */
+    public boolean isIdle() {
+        return buffer == null;
+    }
+
+    public byte getVersion() {
+        return version;
+    }
+
+    public int getDataLength() {
+        return dataLength;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * Handles a plain write request. Once it returns STATUS_COMPLETE the message waits for
+     * dispatch(), so the caller can answer the write before handing the message on.
+     */
+    public int onWrite(byte[] value) {
+        if (value == null || value.length == 0) return STATUS_OK;
+        int start = 0;
+        if (isIdle()) {
+            long length = MessageHeader.readLength(value);
+            if (length < 0) return STATUS_BAD_HEADER;
+            if (length > maxMessageLength) return STATUS_TOO_LONG;
+            dispatch(null, null);
+            version = value[0];
+            dataLength = (int) length;
+            position = 0;
+            buffer = pool.acquire(dataLength);
+            start = MessageHeader.size(version);
+        }
+        int count = Math.min(value.length - start, dataLength - position);
+        System.arraycopy(value, start, buffer, position, count);
+        position += count;
+
+        if (position < dataLength) return STATUS_OK;
+        completed = buffer;
+        completedLength = dataLength;
+        buffer = null;
+        return STATUS_COMPLETE;
+    }
+
+    /**
+     * Hands the last completed message to the handler and returns its buffer to the pool.
+     */
+    public void dispatch(TransferSession session, MessageHandler handler) {
+        byte[] message = completed;
+        if (message == null) return;
+        completed = null;
+        try {
+            if (handler != null)
+                handler.onMessage(session, version,
+                        ByteBuffer.wrap(message, 0, completedLength).asReadOnlyBuffer());
+        } finally {
+            pool.release(message);
+        }
+    }
+
+    /**
+     * Queues a prepared write. Offsets are relative to the long value being written and must
+     * follow on from the previous prepared write.
+     */
+    public int onPreparedWrite(int offset, byte[] value) {
+        if (value == null) return STATUS_OK;
+        if (offset != preparedLength) return STATUS_INVALID_OFFSET;
+        if (preparedLength + value.length > maxPreparedLength) return STATUS_TOO_LONG;
+        // Binder hands every callback a fresh array, so it can be kept without copying
+        preparedValues.add(value);
+        preparedLength += value.length;
+        return STATUS_OK;
+    }
+
+    /**
+     * Commits (execute == true) or drops the queued prepared writes. Committed values are fed
+     * through onWrite() in order, as if the central had written them one by one. Messages that
+     * complete before the last value are dispatched right away; the last one is left for the
+     * caller's dispatch().
+     */
+    public int onExecuteWrite(TransferSession session, boolean execute, MessageHandler handler) {
+        int status = STATUS_OK;
+        if (execute) {
+            for (int i = 0; i < preparedValues.size() && status >= STATUS_OK; i++) {
+                if (status == STATUS_COMPLETE) dispatch(session, handler);
+                status = onWrite(preparedValues.get(i));
+            }
+        }
+        preparedValues.clear();
+        preparedLength = 0;
+        return status;
+    }
+
+    public void reset() {
+        if (buffer != null) pool.release(buffer);
+        if (completed != null) pool.release(completed);
+        buffer = null;
+        completed = null;
+        position = 0;
+        dataLength = 0;
+        preparedValues.clear();
+        preparedLength = 0;
+    }
+}
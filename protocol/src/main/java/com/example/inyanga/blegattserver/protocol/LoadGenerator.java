@@ -0,0 +1,164 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Seeded load generator for one session, started with {@link ProtocolEngine#startLoad}. It sends
+ * a stream of generated messages shaped by a {@link LoadProfile} and reports throughput and
+ * errors while a soak run lasts. Message sizes, contents and the packet sequence all derive from
+ * the seed, so a run can be repeated exactly and a central can check every payload against
+ * {@link #payload(long, int, int)}. Like the engine, it is confined to the event loop.
+ */
+public class LoadGenerator {
+
+    private final ProtocolEngine engine;
+    private final TransferSession session;
+    private final LoadProfile profile;
+    private final long seed;
+    private final Random random;
+    private final ProtocolLog log;
+    private final TransferMetrics metrics;
+    private final long retriesAtStart;
+    private final long failuresAtStart;
+    private final long startNanos = System.nanoTime();
+    private long lastReportNanos = startNanos;
+    private ShapedSource current;
+    private int currentLength;
+    private int messages;
+    private long payloadBytes;
+    private long dropped;
+    private long reordered;
+    private String error;
+    private boolean running = true;
+    private volatile boolean finished;
+
+    private final Runnable sendTask = new Runnable() {
+        @Override
+        public void run() {
+            sendNext();
+        }
+    };
+
+    LoadGenerator(ProtocolEngine engine, TransferSession session, LoadProfile profile, long seed,
+                  ProtocolLog log) {
+        this.engine = engine;
+        this.session = session;
+        this.profile = profile;
+        this.seed = seed;
+        this.random = new Random(seed);
+        this.log = log;
+        this.metrics = engine.getMetrics();
+        this.retriesAtStart = metrics.getRetries();
+        this.failuresAtStart = metrics.getFailures();
+    }
+
+    /**
+     * Payload of message index of a run with the given seed.
+     */
+    public static byte[] payload(long seed, int index, int length) {
+        byte[] payload = new byte[length];
+        new Random(seed * 31 + index).nextBytes(payload);
+        return payload;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getMessages() {
+        return messages;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    void start() {
+        log.log("Load seed " + seed + ": " + profile, true, 1);
+        sendNext();
+    }
+
+    /**
+     * Lets the message being sent finish and ends the run.
+     */
+    void stop() {
+        running = false;
+        if (current == null) finish();
+    }
+
+    boolean isSending(ChunkSource source) {
+        return current != null && source == current;
+    }
+
+    void onMessageSent() {
+        payloadBytes += currentLength;
+        dropped += current.getDropped();
+        reordered += current.getReordered();
+        current = null;
+        messages++;
+        long now = System.nanoTime();
+        if (profile.getReportIntervalMillis() > 0
+                && now - lastReportNanos >= profile.getReportIntervalMillis() * 1000000) {
+            lastReportNanos = now;
+            log.log(report(), true, 0);
+        }
+        if (!running || isDone(now)) {
+            finish();
+            return;
+        }
+        long delayMillis = 0;
+        if (profile.getMessagesPerSecond() > 0) {
+            long dueNanos = startNanos + messages * 1000000000L / profile.getMessagesPerSecond();
+            delayMillis = Math.max(0, (dueNanos - now) / 1000000);
+        }
+        engine.postDelayed(sendTask, delayMillis);
+    }
+
+    void onDisconnected() {
+        if (finished) return;
+        if (running) error = "disconnected after " + messages + " messages";
+        current = null;
+        finish();
+    }
+
+    private boolean isDone(long now) {
+        if (profile.getMessageCount() > 0 && messages >= profile.getMessageCount()) return true;
+        return profile.getDurationMillis() > 0 && now - startNanos >= profile.getDurationMillis() * 1000000;
+    }
+
+    private void sendNext() {
+        if (!running || finished) return;
+        int length = profile.getMinPayloadSize()
+                + random.nextInt(profile.getMaxPayloadSize() - profile.getMinPayloadSize() + 1);
+        byte version = (length > MessageHeader.MAX_LENGTH_V1) ? MessageHeader.VERSION_2 : MessageHeader.VERSION_1;
+        int headerSize = MessageHeader.size(version);
+        byte[] message = new byte[headerSize + length];
+        MessageHeader.write(message, version, length);
+        System.arraycopy(payload(seed, messages, length), 0, message, headerSize, length);
+        currentLength = length;
+
+        current = new ShapedSource(ByteBuffer.wrap(message), profile.getChunkSizes(), random,
+                profile.getLossRate(), profile.getReorderRate());
+        engine.sendQuietly(session, current);
+    }
+
+    private void finish() {
+        finished = true;
+        running = false;
+        engine.onLoadFinished(session);
+        log.log("Load finished. " + report(), true, 1);
+    }
+
+    public String report() {
+        long elapsedNanos = Math.max(1, System.nanoTime() - startNanos);
+        return String.format(Locale.US,
+                "Load seed %d: %d messages, %d B payload in %.1f s (%d B/s, %.1f msg/s), "
+                        + "dropped %d, reordered %d, notification retries %d, failures %d%s",
+                seed, messages, payloadBytes, elapsedNanos / 1e9,
+                payloadBytes * 1000000000L / elapsedNanos, messages * 1e9 / elapsedNanos,
+                dropped, reordered, metrics.getRetries() - retriesAtStart,
+                metrics.getFailures() - failuresAtStart, (error == null) ? "" : ", error: " + error);
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.inyanga.blegattserver.protocol;
+
+/**
+ * Shape of the traffic a {@link LoadGenerator} sends: packet sizes, message sizes and rate,
+ * synthetic loss and reordering, and how long a soak run lasts. The defaults send 1 KB
+ * messages back to back in full packets until the run is stopped.
+ */
+public class LoadProfile {
+
+    /**
+     * Largest generated payload, the most the engine accepts in one inbound message. Each
+     * message is built in memory, so larger ones would only exhaust the heap.
+     */
+    public static final int MAX_PAYLOAD_SIZE = ProtocolEngine.MAX_INBOUND_LENGTH;
+
+    private ChunkSizeDistribution chunkSizes = ChunkSizeDistribution.full();
+    private int minPayloadSize = 1024;
+    private int maxPayloadSize = 1024;
+    private int messagesPerSecond;
+    private double lossRate;
+    private double reorderRate;
+    private int messageCount;
+    private long durationMillis;
+    private long reportIntervalMillis = 10000;
+
+    public ChunkSizeDistribution getChunkSizes() {
+        return chunkSizes;
+    }
+
+    public void setChunkSizes(ChunkSizeDistribution chunkSizes) {
+        this.chunkSizes = chunkSizes;
+    }
+
+    public int getMinPayloadSize() {
+        return minPayloadSize;
+    }
+
+    public int getMaxPayloadSize() {
+        return maxPayloadSize;
+    }
+
+    /**
+     * Payload sizes are drawn uniformly from min to max inclusive; payloads larger than 64 KB
+     * are framed in protocol v2. Sizes above MAX_PAYLOAD_SIZE are clamped to it.
+     */
+    public void setPayloadSize(int min, int max) {
+        if (min < 0 || max < min)
+            throw new IllegalArgumentException("Invalid payload sizes: " + min + "-" + max);
+        this.minPayloadSize = Math.min(min, MAX_PAYLOAD_SIZE);
+        this.maxPayloadSize = Math.min(max, MAX_PAYLOAD_SIZE);
+    }
+
+    public int getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    /**
+     * @param messagesPerSecond target rate, 0 to send each message as soon as the previous one
+     *                          is out. A link slower than the rate caps it.
+     */
+    public void setMessagesPerSecond(int messagesPerSecond) {
+        this.messagesPerSecond = Math.max(0, messagesPerSecond);
+    }
+
+    public double getLossRate() {
+        return lossRate;
+    }
+
+    public void setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+    }
+
+    public double getReorderRate() {
+        return reorderRate;
+    }
+
+    public void setReorderRate(double reorderRate) {
+        this.reorderRate = reorderRate;
+    }
+
+    public int getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * @param messageCount messages to send before the run ends, 0 for no limit
+     */
+    public void setMessageCount(int messageCount) {
+        this.messageCount = Math.max(0, messageCount);
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * @param durationMillis length of a soak run, 0 for no limit
+     */
+    public void setDurationMillis(long durationMillis) {
+        this.durationMillis = Math.max(0, durationMillis);
+    }
+
+    /**
+     * @return true if a run with this profile only ends when it is stopped
+     */
+    public boolean isUnbounded() {
+        return messageCount == 0 && durationMillis == 0;
+    }
+
+    /**
+     * @return this profile if a run with it ends by itself, otherwise a copy whose runs last
+     * durationMillis, e.g. for load tests a central asks for and cannot stop
+     */
+    public LoadProfile bounded(long durationMillis) {
+        if (!isUnbounded()) return this;
+        LoadProfile profile = new LoadProfile();
+        profile.chunkSizes = chunkSizes;
+        profile.minPayloadSize = minPayloadSize;
+        profile.maxPayloadSize = maxPayloadSize;
+        profile.messagesPerSecond = messagesPerSecond;
+        profile.lossRate = lossRate;
+        profile.reorderRate = reorderRate;
+        profile.reportIntervalMillis = reportIntervalMillis;
+        profile.setDurationMillis(durationMillis);
+        return profile;
+    }
+
+    public long getReportIntervalMillis() {
+        return reportIntervalMillis;
+    }
+
+    public void setReportIntervalMillis(long reportIntervalMillis) {
+        this.reportIntervalMillis = reportIntervalMillis;
+    }
+
+    @Override
+    public String toString() {
+        return chunkSizes + " packets, " + minPayloadSize + "-" + maxPayloadSize + " B payloads, "
+                + (messagesPerSecond == 0 ? "back to back" : messagesPerSecond + " msg/s")
+                + ", loss " + lossRate + ", reorder " + reorderRate;
+    }
+}
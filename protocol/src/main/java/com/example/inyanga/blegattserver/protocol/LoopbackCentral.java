@@ -0,0 +1,232 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Simulated central for {@link LoopbackTransport}. It writes framed requests in MTU-sized
+ * pieces, reassembles the framed messages it is notified with and records when the request
+ * was made, when its first byte arrived and when the message was complete. A message cut off by
+ * a disconnect is kept so the rest of it can be resumed. With several stripes the message is
+ * reassembled from the data characteristics as described in {@link StripedSource}. Records of
+ * {@link RecordCoalescer} frames received between messages are collected separately.
+ */
+public class LoopbackCentral {
+
+    private final String address;
+    private final LoopbackTransport transport;
+    private final ByteArrayOutputStream message = new ByteArrayOutputStream();
+    private long dataLength = -1;
+    private final byte[] header = new byte[MessageHeader.SIZE_V2];
+    private int headerFill;
+    private int headerSize;
+    private byte[] received;
+    private int failedResponses;
+    private ByteArrayOutputStream[] stripes;
+    private long stripedSize;
+    private final List<byte[]> records = new ArrayList<>();
+    private int recordFrames;
+    private int messageCount;
+
+    private long requestTime;
+    private long firstByteTime;
+    private long completeTime;
+
+    public LoopbackCentral(String address, LoopbackTransport transport) {
+        this.address = address;
+        this.transport = transport;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * Expects messages striped across stripeCount data characteristics, 1 for the main one only.
+     */
+    public synchronized void setStripeCount(int stripeCount) {
+        stripes = null;
+        if (stripeCount <= 1) return;
+        stripes = new ByteArrayOutputStream[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new ByteArrayOutputStream();
+        }
+    }
+
+    public void request(byte version, byte[] payload) {
+        synchronized (this) {
+            dataLength = -1;
+            headerFill = 0;
+            resetStripes();
+        }
+        write(version, payload);
+    }
+
+    /**
+     * Like request(), but notifications continue the partially received message instead of
+     * starting a new one.
+     */
+    public void resume(byte version, byte[] payload) {
+        write(version, payload);
+    }
+
+    /**
+     * @return bytes of the framed message in progress received so far, header included
+     */
+    public synchronized long getReceivedLength() {
+        return (dataLength < 0) ? 0 : headerSize + message.size();
+    }
+
+    private void write(byte version, byte[] payload) {
+        int headerSize = MessageHeader.size(version);
+        byte[] request = new byte[headerSize + payload.length];
+        MessageHeader.write(request, version, payload.length);
+        System.arraycopy(payload, 0, request, headerSize, payload.length);
+
+        synchronized (this) {
+            received = null;
+            requestTime = System.nanoTime();
+            firstByteTime = 0;
+            completeTime = 0;
+        }
+        int packetSize = transport.getMtu() - 3;
+        for (int start = 0; start < request.length; start += packetSize) {
+            int end = Math.min(request.length, start + packetSize);
+            byte[] packet = new byte[end - start];
+            System.arraycopy(request, start, packet, 0, packet.length);
+            transport.write(address, packet);
+        }
+    }
+
+    /**
+     * @return the payload of the next complete message, or null if none arrived in time
+     */
+    public synchronized byte[] awaitMessage(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long remaining;
+        while (received == null && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            wait(remaining);
+        }
+        return received;
+    }
+
+    /**
+     * @return the first count records received, or null if fewer arrived in time
+     */
+    public synchronized List<byte[]> awaitRecords(int count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long remaining;
+        while (records.size() < count && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            wait(remaining);
+        }
+        return (records.size() < count) ? null : new ArrayList<>(records.subList(0, count));
+    }
+
+    /**
+     * @return number of complete messages received so far
+     */
+    public synchronized int getMessageCount() {
+        return messageCount;
+    }
+
+    public synchronized int getRecordFrames() {
+        return recordFrames;
+    }
+
+    public synchronized long getTimeToFirstByte() {
+        return firstByteTime - requestTime;
+    }
+
+    public synchronized long getTransferTime() {
+        return completeTime - requestTime;
+    }
+
+    public synchronized int getFailedResponses() {
+        return failedResponses;
+    }
+
+    synchronized void onWriteResponse(int status) {
+        if (status != GattTransport.GATT_SUCCESS) failedResponses++;
+    }
+
+    synchronized void onNotification(int stripe, byte[] value) {
+        if (stripe == 0 && dataLength < 0 && headerFill == 0 && stripedSize == 0 && value.length > 0
+                && value[0] == MessageHeader.RECORD_FRAME) {
+            onRecordFrame(value);
+            return;
+        }
+        if (stripes == null) {
+            onNotification(value);
+            return;
+        }
+        if (firstByteTime == 0) firstByteTime = System.nanoTime();
+        stripes[stripe].write(value, 0, value.length);
+        stripedSize += value.length;
+        if (dataLength < 0) {
+            byte[] first = stripes[0].toByteArray();
+            if (first.length == 0) return;
+            dataLength = MessageHeader.readLength(first);
+            if (dataLength < 0) return;
+            headerSize = MessageHeader.size(first[0]);
+        }
+        if (stripedSize < headerSize + dataLength) return;
+
+        message.reset();
+        for (ByteArrayOutputStream part : stripes) {
+            message.write(part.toByteArray(), 0, part.size());
+        }
+        byte[] framed = message.toByteArray();
+        received = Arrays.copyOfRange(framed, headerSize, framed.length);
+        completeTime = System.nanoTime();
+        messageCount++;
+        dataLength = -1;
+        resetStripes();
+        notifyAll();
+    }
+
+    private void onRecordFrame(byte[] frame) {
+        for (int position = 1; position < frame.length; ) {
+            int length = frame[position++] & 0xFF;
+            records.add(Arrays.copyOfRange(frame, position, position + length));
+            position += length;
+        }
+        recordFrames++;
+        notifyAll();
+    }
+
+    private void resetStripes() {
+        if (stripes == null) return;
+        for (ByteArrayOutputStream part : stripes) {
+            part.reset();
+        }
+        stripedSize = 0;
+    }
+
+    private void onNotification(byte[] value) {
+        int start = 0;
+        if (dataLength < 0) {
+            // Small packets may split the header
+            int size = MessageHeader.size((headerFill > 0) ? header[0] : value[0]);
+            if (size < 0) return;
+            start = Math.min(size - headerFill, value.length);
+            System.arraycopy(value, 0, header, headerFill, start);
+            headerFill += start;
+            if (headerFill < size) return;
+            dataLength = MessageHeader.readLength(header);
+            headerFill = 0;
+            headerSize = size;
+            message.reset();
+            firstByteTime = System.nanoTime();
+        }
+        message.write(value, start, value.length - start);
+        if (message.size() >= dataLength) {
+            received = message.toByteArray();
+            completeTime = System.nanoTime();
+            messageCount++;
+            dataLength = -1;
+            notifyAll();
+        }
+    }
+}
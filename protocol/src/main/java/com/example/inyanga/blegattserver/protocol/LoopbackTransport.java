@@ -0,0 +1,190 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-JVM link between a {@link ProtocolEngine} and {@link LoopbackCentral}s, so transfers can be
+ * run and timed without a phone. Every connection interval each link carries at most
+ * packetsPerEvent notifications and one write request. A lost packet is retransmitted in the
+ * next connection event, as the link layer would do. Notifications are refused once
+ * queueCapacity of them are waiting, like a busy Bluetooth stack. With write without response
+ * a connection event carries up to packetsPerEvent writes instead of one request and response.
+ */
+public class LoopbackTransport implements GattTransport {
+
+    private final int mtu;
+    private final long connectionIntervalMicros;
+    private final int packetsPerEvent;
+    private final int queueCapacity;
+    private final double lossRate;
+    private final Random random;
+    private final Map<String, Link> links = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService executor;
+    private ProtocolEngine engine;
+    private volatile boolean writeWithoutResponse;
+
+    public LoopbackTransport(int mtu, long connectionIntervalMicros, int packetsPerEvent,
+                             int queueCapacity, double lossRate, long seed) {
+        this.mtu = mtu;
+        this.connectionIntervalMicros = connectionIntervalMicros;
+        this.packetsPerEvent = packetsPerEvent;
+        this.queueCapacity = queueCapacity;
+        this.lossRate = lossRate;
+        this.random = new Random(seed);
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Loopback link");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void attach(ProtocolEngine engine) {
+        this.engine = engine;
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                onConnectionEvent();
+            }
+        }, connectionIntervalMicros, connectionIntervalMicros, TimeUnit.MICROSECONDS);
+    }
+
+    public void setWriteWithoutResponse(boolean writeWithoutResponse) {
+        this.writeWithoutResponse = writeWithoutResponse;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    public void connect(final LoopbackCentral central) {
+        final Link link = new Link(central);
+        links.put(central.getAddress(), link);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                engine.onConnected(central.getAddress());
+                engine.onMtuChanged(central.getAddress(), mtu);
+                link.connected = true;
+            }
+        });
+    }
+
+    public void disconnect(final String address) {
+        links.remove(address);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                engine.onDisconnected(address);
+            }
+        });
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Queues a write request from a central; it is carried by a later connection event.
+     */
+    void write(String address, byte[] value) {
+        Link link = links.get(address);
+        if (link == null) return;
+        synchronized (link) {
+            link.writes.add(value);
+        }
+    }
+
+    /***********************************************************************************************
+     GattTransport implementation
+     **********************************************************************************************/
+
+    @Override
+    public boolean notify(String address, int stripe, byte[] value) {
+        Link link = links.get(address);
+        if (link == null) return false;
+        synchronized (link) {
+            if (link.notifications.size() >= queueCapacity) return false;
+            link.notifications.add(new Notification(stripe, value.clone()));
+        }
+        return true;
+    }
+
+    @Override
+    public void sendResponse(String address, int requestId, int status, int offset, byte[] value) {
+        Link link = links.get(address);
+        if (link != null) link.central.onWriteResponse(status);
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMillis) {
+        executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /***********************************************************************************************
+     Connection events
+     **********************************************************************************************/
+
+    private void onConnectionEvent() {
+        List<Notification> delivered = new ArrayList<>();
+        List<byte[]> written = new ArrayList<>();
+        boolean withoutResponse = writeWithoutResponse;
+        for (Link link : links.values()) {
+            // An overdue connection event may run before the engine has seen the connection
+            if (!link.connected) continue;
+            delivered.clear();
+            written.clear();
+            synchronized (link) {
+                int writes = withoutResponse ? packetsPerEvent : 1;
+                for (int i = 0; i < writes && !link.writes.isEmpty(); i++) {
+                    written.add(link.writes.poll());
+                }
+                for (int i = 0; i < packetsPerEvent && !link.notifications.isEmpty(); i++) {
+                    if (lossRate > 0 && random.nextDouble() < lossRate) continue;
+                    delivered.add(link.notifications.poll());
+                }
+            }
+            String address = link.central.getAddress();
+            for (byte[] write : written) {
+                engine.onWrite(address, link.nextRequestId++, false, !withoutResponse, 0, write);
+            }
+            for (Notification notification : delivered) {
+                link.central.onNotification(notification.stripe, notification.value);
+                engine.onNotificationSent(address, true);
+            }
+        }
+    }
+
+    private static class Notification {
+        final int stripe;
+        final byte[] value;
+
+        Notification(int stripe, byte[] value) {
+            this.stripe = stripe;
+            this.value = value;
+        }
+    }
+
+    private static class Link {
+        final LoopbackCentral central;
+        final ArrayDeque<Notification> notifications = new ArrayDeque<>();
+        final ArrayDeque<byte[]> writes = new ArrayDeque<>();
+        int nextRequestId;
+        boolean connected;
+
+        Link(LoopbackCentral central) {
+            this.central = central;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Fast LZ77 codec for payloads where Deflate costs more CPU than it saves airtime. Blocks use
+ * the LZ4 block format (single-pass hash table, no entropy coding). A compressed payload is a
+ * sequence of blocks, each preceded by its raw and compressed length as two 16-bit big-endian
+ * values, and ends with a block whose raw length is 0, so it can be produced from a stream
+ * without knowing the total size.
+ */
+public final class LzCodec {
+
+    public static final int BLOCK_SIZE = 32 * 1024;
+    static final int BLOCK_HEADER_SIZE = 4;
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_LOG = 12;
+
+    private LzCodec() {
+    }
+
+    /**
+     * Worst case size of one compressed block, incompressible input included.
+     */
+    static int maxBlockLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    public static byte[] compress(byte[] src, int offset, int length) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + BLOCK_HEADER_SIZE);
+        byte[] block = new byte[BLOCK_HEADER_SIZE + maxBlockLength(BLOCK_SIZE)];
+        int[] table = new int[1 << HASH_LOG];
+        for (int start = offset; start < offset + length; start += BLOCK_SIZE) {
+            int count = Math.min(BLOCK_SIZE, offset + length - start);
+            out.write(block, 0, encodeBlock(src, start, count, block, table));
+        }
+        out.write(block, 0, endBlock(block));
+        return out.toByteArray();
+    }
+
+    public static byte[] decompress(byte[] src, int offset, int length) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length * 2);
+        byte[] raw = new byte[BLOCK_SIZE];
+        int end = offset + length;
+        int position = offset;
+        while (true) {
+            if (position + BLOCK_HEADER_SIZE > end) throw new IOException("Truncated LZ payload");
+            int rawLength = readShort(src, position);
+            int blockLength = readShort(src, position + 2);
+            position += BLOCK_HEADER_SIZE;
+            if (rawLength == 0) return out.toByteArray();
+            if (rawLength > BLOCK_SIZE || position + blockLength > end)
+                throw new IOException("Corrupt LZ block header");
+            if (decompressBlock(src, position, blockLength, raw, rawLength) != rawLength)
+                throw new IOException("LZ block shorter than announced");
+            out.write(raw, 0, rawLength);
+            position += blockLength;
+        }
+    }
+
+    /**
+     * Writes a framed block (header + compressed data) for src[offset, offset + length) into
+     * dst, which must hold BLOCK_HEADER_SIZE + maxBlockLength(length) bytes.
+     *
+     * @return number of bytes written
+     */
+    static int encodeBlock(byte[] src, int offset, int length, byte[] dst, int[] table) {
+        int blockLength = compressBlock(src, offset, length, dst, BLOCK_HEADER_SIZE, table);
+        writeShort(dst, 0, length);
+        writeShort(dst, 2, blockLength);
+        return BLOCK_HEADER_SIZE + blockLength;
+    }
+
+    static int endBlock(byte[] dst) {
+        Arrays.fill(dst, 0, BLOCK_HEADER_SIZE, (byte) 0);
+        return BLOCK_HEADER_SIZE;
+    }
+
+    /***********************************************************************************************
+     LZ4 block format
+     **********************************************************************************************/
+
+    static int compressBlock(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset,
+                             int[] table) {
+        Arrays.fill(table, -1);
+        int end = srcOffset + length;
+        int matchLimit = end - LAST_LITERALS;
+        int mfLimit = end - MF_LIMIT;
+        int anchor = srcOffset;
+        int ip = srcOffset;
+        int op = dstOffset;
+
+        while (ip < mfLimit) {
+            int sequence = readInt(src, ip);
+            int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+            int ref = table[hash];
+            table[hash] = ip;
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                ip++;
+                continue;
+            }
+            while (ip > anchor && ref > srcOffset && src[ip - 1] == src[ref - 1]) {
+                ip--;
+                ref--;
+            }
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+                matchLength++;
+            }
+            op = writeSequence(src, anchor, ip - anchor, dst, op, ip - ref, matchLength);
+            ip += matchLength;
+            anchor = ip;
+        }
+        return writeSequence(src, anchor, end - anchor, dst, op, 0, 0) - dstOffset;
+    }
+
+    /**
+     * @return number of bytes written to dst
+     */
+    static int decompressBlock(byte[] src, int srcOffset, int length, byte[] dst, int dstLength)
+            throws IOException {
+        int end = srcOffset + length;
+        int ip = srcOffset;
+        int op = 0;
+        try {
+            while (ip < end) {
+                int token = src[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                if (ip + literals > end || op + literals > dstLength)
+                    throw new IOException("Corrupt LZ block");
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip == end) break;
+
+                int matchOffset = (src[ip++] & 0xFF) | (src[ip++] & 0xFF) << 8;
+                int matchLength = token & 0x0F;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                int ref = op - matchOffset;
+                if (matchOffset == 0 || ref < 0 || op + matchLength > dstLength)
+                    throw new IOException("Corrupt LZ block");
+                // Byte by byte: the match may overlap the bytes it produces
+                for (int i = 0; i < matchLength; i++) {
+                    dst[op++] = dst[ref++];
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Truncated LZ block");
+        }
+        return op;
+    }
+
+    private static int writeSequence(byte[] src, int literalStart, int literals, byte[] dst, int op,
+                                     int matchOffset, int matchLength) {
+        int token = op++;
+        int extraMatch = matchLength - MIN_MATCH;
+        dst[token] = (byte) (Math.min(literals, 15) << 4);
+        if (literals >= 15) op = writeLength(dst, op, literals - 15);
+        System.arraycopy(src, literalStart, dst, op, literals);
+        op += literals;
+        if (matchLength == 0) return op;
+
+        dst[token] |= (byte) Math.min(extraMatch, 15);
+        dst[op++] = (byte) matchOffset;
+        dst[op++] = (byte) (matchOffset >>> 8);
+        if (extraMatch >= 15) op = writeLength(dst, op, extraMatch - 15);
+        return op;
+    }
+
+    private static int writeLength(byte[] dst, int op, int length) {
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    private static int readInt(byte[] src, int i) {
+        return (src[i] & 0xFF) | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF) << 16 | src[i + 3] << 24;
+    }
+
+    private static int readShort(byte[] src, int i) {
+        return (src[i] & 0xFF) << 8 | (src[i + 1] & 0xFF);
+    }
+
+    private static void writeShort(byte[] dst, int i, int value) {
+        dst[i] = (byte) (value >>> 8);
+        dst[i + 1] = (byte) value;
+    }
+
+    /***********************************************************************************************
+     Streaming
+     **********************************************************************************************/
+
+    /**
+     * Compresses another stream one block at a time; reading it yields the framed block
+     * sequence including the end block.
+     */
+    public static class CompressingInputStream extends InputStream {
+
+        private final InputStream in;
+        private final byte[] raw = new byte[BLOCK_SIZE];
+        private final byte[] block = new byte[BLOCK_HEADER_SIZE + maxBlockLength(BLOCK_SIZE)];
+        private final int[] table = new int[1 << HASH_LOG];
+        private int position;
+        private int limit;
+        private boolean finished;
+
+        public CompressingInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return (read(one, 0, 1) == -1) ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position == limit && !nextBlock()) return -1;
+            int count = Math.min(len, limit - position);
+            System.arraycopy(block, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private boolean nextBlock() throws IOException {
+            if (finished) return false;
+            int filled = 0;
+            int nRead;
+            while (filled < raw.length && (nRead = in.read(raw, filled, raw.length - filled)) != -1) {
+                filled += nRead;
+            }
+            position = 0;
+            if (filled == 0) {
+                limit = endBlock(block);
+                finished = true;
+            } else {
+                limit = encodeBlock(raw, 0, filled, block, table);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Resumable message for a byte range of a file, answered to a {@link TransferRequest#READ}.
+ * Only the range is memory-mapped, so a page of a large file is served without reading the rest
+ * of it; the pages are loaded by the OS as packets are cut.
+ */
+public class MappedRange extends FramedPayload {
+
+    /**
+     * @param start position of the range in the channel; the channel may be closed afterwards
+     */
+    public MappedRange(FileChannel channel, long start, long length, byte version) throws IOException {
+        super(map(channel, start, length), version);
+    }
+
+    private static ByteBuffer map(FileChannel channel, long start, long length) throws IOException {
+        // A single mapping is indexed by int
+        if (length > Integer.MAX_VALUE)
+            throw new IOException("Range of " + length + " bytes is too large");
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+    }
+}
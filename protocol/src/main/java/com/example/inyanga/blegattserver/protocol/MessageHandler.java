@@ -0,0 +1,11 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives messages completed by an {@link InboundAssembler}. The payload is a read-only view of
+ * a pooled buffer and is only valid for the duration of the call.
+ */
+public interface MessageHandler {
+    void onMessage(TransferSession session, byte version, ByteBuffer payload);
+}
@@ -0,0 +1,110 @@
+package com.example.inyanga.blegattserver.protocol;
+
+/**
+ * Message framing shared by the inbound and outbound paths: a protocol version byte followed by
+ * the payload length, most significant byte first. Version 1 carries a 16-bit length, version 2
+ * a 32-bit one for payloads that are streamed rather than buffered. The upper four bits of the
+ * version byte select the payload codec, see {@link PayloadCodec}; a request asks for a codec
+ * and the response header names the one that was actually used. An inbound message with the
+ * CONTROL bit set is a protocol command, see {@link TransferRequest}, rather than a request
+ * for data.
+ */
+public final class MessageHeader {
+
+    public static final byte VERSION_1 = 1;
+    public static final byte VERSION_2 = 2;
+    public static final int SIZE_V1 = 3;
+    public static final int SIZE_V2 = 5;
+    public static final long MAX_LENGTH_V1 = 0xFFFF;
+    public static final long MAX_LENGTH_V2 = 0xFFFFFFFEL;
+    /**
+     * Version 2 length of a streamed, compressed payload whose size is not known up front; the
+     * codec's own end marker terminates the message.
+     */
+    public static final long LENGTH_UNKNOWN = 0xFFFFFFFFL;
+
+    /**
+     * Version of a self-contained notification that carries whole small records instead of a
+     * part of a framed message, see {@link RecordCoalescer}. It has no length field.
+     */
+    public static final byte RECORD_FRAME = 3;
+
+    /**
+     * Version bit of an inbound message whose payload is a {@link TransferRequest} command.
+     */
+    public static final int CONTROL = 0x08;
+
+    private static final int VERSION_MASK = 0x07;
+    private static final int CODEC_SHIFT = 4;
+
+    private MessageHeader() {
+    }
+
+    /**
+     * @return header size for the given version, or -1 if the version is not supported
+     */
+    public static int size(byte version) {
+        switch (version(version)) {
+            case VERSION_1:
+                return SIZE_V1;
+            case VERSION_2:
+                return SIZE_V2;
+            default:
+                return -1;
+        }
+    }
+
+    public static long maxLength(byte version) {
+        return (version(version) == VERSION_2) ? MAX_LENGTH_V2 : MAX_LENGTH_V1;
+    }
+
+    /**
+     * @return the protocol version without the codec and control bits
+     */
+    public static byte version(byte version) {
+        return (byte) (version & VERSION_MASK);
+    }
+
+    public static int codec(byte version) {
+        return (version & 0xFF) >>> CODEC_SHIFT;
+    }
+
+    public static byte withCodec(byte version, int codec) {
+        return (byte) ((version & (VERSION_MASK | CONTROL)) | (codec << CODEC_SHIFT));
+    }
+
+    public static boolean isControl(byte version) {
+        return (version & CONTROL) != 0;
+    }
+
+    /**
+     * @return the version byte that marks a message as a control command
+     */
+    public static byte control(byte version) {
+        return (byte) (version | CONTROL);
+    }
+
+    public static void write(byte[] message, byte version, long dataLength) {
+        int size = size(version);
+        message[0] = version;
+        for (int i = size - 1; i > 0; i--) {
+            message[i] = (byte) (dataLength & 0xFF);
+            dataLength >>= 8;
+        }
+    }
+
+    /**
+     * @return the payload length announced by the header at the start of value, or -1 if the
+     * version is unknown or value is too short to hold the header
+     */
+    public static long readLength(byte[] value) {
+        if (value == null || value.length == 0) return -1;
+        int size = size(value[0]);
+        if (size < 0 || value.length < size) return -1;
+        long length = 0;
+        for (int i = 1; i < size; i++) {
+            length = (length << 8) | (value[i] & 0xFF);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Decides which session gets the next notification. Sessions with pending data take turns in
+ * round-robin order; a session keeps its turn for {@link TransferSession#getWeight()} packets
+ * before it moves to the back of the queue, so a large transfer to one central does not hold
+ * up the others. A session whose notification window is full is passed over until a credit
+ * comes back. Like the engine that owns it, the scheduler is confined to one thread.
+ */
+public class NotificationScheduler {
+
+    private final Deque<TransferSession> ready = new ArrayDeque<>();
+    private int turnPackets;
+
+    public void schedule(TransferSession session) {
+        if (!ready.contains(session)) ready.addLast(session);
+    }
+
+    public void remove(TransferSession session) {
+        if (ready.peekFirst() == session) turnPackets = 0;
+        ready.remove(session);
+    }
+
+    public void clear() {
+        ready.clear();
+        turnPackets = 0;
+    }
+
+    /**
+     * @return the session that should send the next packet, or null if nobody has pending data
+     * and window credit
+     */
+    public TransferSession next() {
+        TransferSession head;
+        int blocked = 0;
+        while ((head = ready.peekFirst()) != null) {
+            if (!head.hasPendingData()) {
+                ready.pollFirst();
+                turnPackets = 0;
+            } else if (!head.getNotificationWindow().hasCredit()) {
+                if (++blocked >= ready.size()) return null;
+                ready.addLast(ready.pollFirst());
+                turnPackets = 0;
+            } else if (turnPackets >= head.getWeight()) {
+                ready.addLast(ready.pollFirst());
+                turnPackets = 0;
+            } else {
+                turnPackets++;
+                return head;
+            }
+        }
+        return null;
+    }
+}
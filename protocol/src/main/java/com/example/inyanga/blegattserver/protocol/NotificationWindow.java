@@ -0,0 +1,105 @@
+package com.example.inyanga.blegattserver.protocol;
+
+/**
+ * Credit window for the outstanding notifications of one central. A credit is taken for every
+ * notification handed to the stack and returned by onNotificationSent. The window grows by one
+ * after a full window of successful notifications and is halved whenever the stack rejects a
+ * notification or reports a failed one. Not thread safe; callers serialize access.
+ */
+public class NotificationWindow {
+
+    public static final int DEFAULT_INITIAL_SIZE = 1;
+    public static final int DEFAULT_MAX_SIZE = 8;
+
+    private final int minSize;
+    private int maxSize;
+    private int size;
+    private int inFlight;
+    private int successStreak;
+    private int stallCount;
+    private int failureCount;
+
+    public NotificationWindow(int initialSize, int maxSize) {
+        this.minSize = 1;
+        this.maxSize = Math.max(minSize, maxSize);
+        this.size = Math.max(minSize, Math.min(initialSize, this.maxSize));
+    }
+
+    /**
+     * Changes the limits without losing track of the notifications in flight.
+     */
+    public void resize(int initialSize, int maxSize) {
+        this.maxSize = Math.max(minSize, maxSize);
+        this.size = Math.max(minSize, Math.min(initialSize, this.maxSize));
+        successStreak = 0;
+    }
+
+    public boolean hasCredit() {
+        return inFlight < size;
+    }
+
+    public boolean tryAcquire() {
+        if (inFlight >= size) return false;
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Returns a credit that was acquired but not used.
+     */
+    public void release() {
+        inFlight = Math.max(0, inFlight - 1);
+    }
+
+    /**
+     * The stack refused the notification (notifyCharacteristicChanged returned false).
+     */
+    public void onRejected() {
+        inFlight = Math.max(0, inFlight - 1);
+        stallCount++;
+        shrink();
+    }
+
+    public void onSent(boolean success) {
+        inFlight = Math.max(0, inFlight - 1);
+        if (!success) {
+            failureCount++;
+            shrink();
+            return;
+        }
+        if (++successStreak >= size && size < maxSize) {
+            size++;
+            successStreak = 0;
+        }
+    }
+
+    public void reset() {
+        inFlight = 0;
+        successStreak = 0;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    public int getStallCount() {
+        return stallCount;
+    }
+
+    public int getFailureCount() {
+        return failureCount;
+    }
+
+    private void shrink() {
+        size = Math.max(minSize, size / 2);
+        successStreak = 0;
+    }
+}
@@ -0,0 +1,207 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Protocol v2 message of known length that a host app produces while it is being sent. Only a
+ * fixed number of bytes is buffered: producers on any thread either write() and block while the
+ * buffer is full, or offer() what fits when the {@link DemandListener} asks for more. Demand is
+ * signalled on the event loop each time a notification completes, so producers run at the rate
+ * the link actually drains rather than filling memory ahead of it. A producer that cannot
+ * deliver the whole length calls abort(), which ends the transfer as failed.
+ */
+public class OutboundStream implements ChunkSource {
+
+    /**
+     * Pull-based producer, called on the event loop whenever the stream has room.
+     */
+    public interface DemandListener {
+        /**
+         * @param freeBytes bytes the stream accepts now, never more than the rest of the message
+         */
+        void onDemand(OutboundStream stream, int freeBytes);
+    }
+
+    private final PacketBuffer packets = new PacketBuffer();
+    private final byte[] header = new byte[MessageHeader.SIZE_V2];
+    private final byte[] ring;
+    private final long length;
+    private int headerPosition;
+    private int head;
+    private int count;
+    private long written;
+    private long taken;
+    private boolean closed;
+    private boolean parked;
+    private Runnable wakeup;
+    private DemandListener listener;
+
+    /**
+     * @param length payload length, announced in the header before any data is produced
+     * @param capacity bytes buffered at most between the producer and the link
+     */
+    public OutboundStream(long length, int capacity) {
+        if (length < 0 || length > MessageHeader.MAX_LENGTH_V2)
+            throw new IllegalArgumentException("Invalid stream length: " + length);
+        this.length = length;
+        this.ring = new byte[Math.max(1, capacity)];
+        MessageHeader.write(header, MessageHeader.VERSION_2, length);
+    }
+
+    public void setDemandListener(DemandListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Task the stream runs, on the producer's thread, when data arrives after the link drained
+     * the buffer. The engine uses it to post the session back into the scheduler.
+     */
+    void setWakeup(Runnable wakeup) {
+        this.wakeup = wakeup;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public synchronized int getFreeSpace() {
+        return (int) Math.min(ring.length - count, length - written);
+    }
+
+    /**
+     * Copies as much of src as fits without blocking.
+     *
+     * @return number of bytes accepted, or -1 if the stream was closed
+     */
+    public int offer(byte[] src, int offset, int len) {
+        boolean wake;
+        int accepted;
+        synchronized (this) {
+            if (closed) return -1;
+            accepted = Math.min(len, getFreeSpace());
+            put(src, offset, accepted);
+            wake = parked && accepted > 0;
+            if (wake) parked = false;
+        }
+        if (wake && wakeup != null) wakeup.run();
+        return accepted;
+    }
+
+    /**
+     * Copies all of src, blocking while the buffer is full.
+     *
+     * @throws IOException if the stream is closed first, e.g. because the central disconnected
+     */
+    public void write(byte[] src, int offset, int len) throws IOException {
+        while (len > 0) {
+            synchronized (this) {
+                while (!closed && getFreeSpace() == 0) {
+                    if (written == length) throw new IOException("Write past the stream length");
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+            int accepted = offer(src, offset, len);
+            if (accepted < 0) throw new IOException("Stream closed");
+            offset += accepted;
+            len -= accepted;
+        }
+    }
+
+    /**
+     * Ends the stream before all of its bytes were written, e.g. because the producer failed.
+     * The engine aborts the transfer and writers get an IOException. Does nothing once every
+     * byte was written or the stream was closed.
+     */
+    public void abort() {
+        boolean early;
+        synchronized (this) {
+            early = !closed && written < length;
+            closed = true;
+            notifyAll();
+        }
+        if (early && wakeup != null) wakeup.run();
+    }
+
+    /**
+     * @return true if the stream was closed before every byte was written
+     */
+    public synchronized boolean isAborted() {
+        return closed && written < length;
+    }
+
+    /**
+     * @return true once every byte of the message has been handed to the link
+     */
+    public synchronized boolean isComplete() {
+        return headerPosition == header.length && taken == length;
+    }
+
+    /**
+     * Tells the demand listener how much the stream can take now. Called on the event loop.
+     */
+    void signalDemand() {
+        int free = getFreeSpace();
+        boolean open;
+        synchronized (this) {
+            open = !closed;
+        }
+        if (listener != null && open && free > 0) listener.onDemand(this, free);
+    }
+
+    @Override
+    public synchronized boolean hasRemaining() {
+        boolean remaining = headerPosition < header.length || count > 0;
+        if (!remaining && !closed && !isComplete()) parked = true;
+        return remaining;
+    }
+
+    @Override
+    public synchronized byte[] next(int packetSize) {
+        int fromHeader = Math.min(packetSize, header.length - headerPosition);
+        int length = fromHeader + Math.min(packetSize - fromHeader, count);
+        if (length <= 0) {
+            if (!closed && !isComplete()) parked = true;
+            return null;
+        }
+
+        byte[] dst = packets.obtain(length, packetSize);
+        System.arraycopy(header, headerPosition, dst, 0, fromHeader);
+        headerPosition += fromHeader;
+        take(dst, fromHeader, length - fromHeader);
+        notifyAll();
+        return dst;
+    }
+
+    /**
+     * Called by the engine when the transfer ends or is replaced, or the central disconnects.
+     * Producers use abort() instead.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    private void put(byte[] src, int offset, int len) {
+        int tail = (head + count) % ring.length;
+        int first = Math.min(len, ring.length - tail);
+        System.arraycopy(src, offset, ring, tail, first);
+        System.arraycopy(src, offset + first, ring, 0, len - first);
+        count += len;
+        written += len;
+    }
+
+    private void take(byte[] dst, int offset, int len) {
+        int first = Math.min(len, ring.length - head);
+        System.arraycopy(ring, head, dst, offset, first);
+        System.arraycopy(ring, 0, dst, offset + first, len - first);
+        head = (head + len) % ring.length;
+        count -= len;
+        taken += len;
+    }
+}
@@ -0,0 +1,22 @@
+package com.example.inyanga.blegattserver.protocol;
+
+/**
+ * Scratch arrays for outgoing packets. Notifications need an array of the exact packet length,
+ * so a full-size array and a tail array are kept and reused for as long as the sizes match.
+ */
+public class PacketBuffer {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private byte[] packet = EMPTY;
+    private byte[] tail = EMPTY;
+
+    public byte[] obtain(int length, int packetSize) {
+        if (length == packetSize) {
+            if (packet.length != packetSize) packet = new byte[packetSize];
+            return packet;
+        }
+        if (tail.length != length) tail = new byte[length];
+        return tail;
+    }
+}
@@ -0,0 +1,177 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps fully framed messages (header + payload) for named resources so a repeated request can
+ * start sending without touching storage. Entries are keyed by resource name and protocol
+ * version and evicted least recently used first once the byte budget is exceeded. Only
+ * protocol v1 messages are cached; v2 payloads are streamed, see {@link StreamChunkSource}.
+ * A version byte with codec bits yields the compressed variant, compressed once on load and
+ * kept next to the raw one; if compression does not make the payload smaller the entry is
+ * framed uncompressed, so callers must read the codec back from the header.
+ */
+public class PayloadCache {
+
+    public interface Loader {
+        InputStream open(String name) throws IOException;
+    }
+
+    private final Loader loader;
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(8, 0.75f, true);
+    private final Map<String, Long> payloadLengths = new HashMap<>();
+    private long maxBytes;
+    private long sizeBytes;
+    private long hits;
+    private long misses;
+    private long compressNanos;
+
+    public PayloadCache(Loader loader, long maxBytes) {
+        this.loader = loader;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return a read-only view of the framed message; callers may share it freely
+     */
+    public ByteBuffer get(String name, byte version) throws IOException {
+        String key = version + ":" + name;
+        synchronized (this) {
+            byte[] message = entries.get(key);
+            if (message != null) {
+                hits++;
+                return ByteBuffer.wrap(message).asReadOnlyBuffer();
+            }
+            misses++;
+        }
+        byte[] message = load(name, version);
+        synchronized (this) {
+            put(key, message);
+        }
+        return ByteBuffer.wrap(message).asReadOnlyBuffer();
+    }
+
+    /**
+     * Loads every resource that is not cached yet, without touching the hit/miss counters.
+     */
+    public void preload(String[] names, byte version) {
+        for (String name : names) {
+            String key = version + ":" + name;
+            synchronized (this) {
+                if (entries.containsKey(key)) continue;
+            }
+            try {
+                byte[] message = load(name, version);
+                synchronized (this) {
+                    put(key, message);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return uncompressed payload length of a resource loaded before, or -1
+     */
+    public synchronized long getPayloadLength(String name) {
+        Long length = payloadLengths.get(name);
+        return (length == null) ? -1 : length;
+    }
+
+    /**
+     * Total time spent compressing payloads on load.
+     */
+    public synchronized long getCompressNanos() {
+        return compressNanos;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        sizeBytes = 0;
+    }
+
+    private void put(String key, byte[] message) {
+        if (message.length > maxBytes) return;
+        byte[] previous = entries.put(key, message);
+        if (previous != null) sizeBytes -= previous.length;
+        sizeBytes += message.length;
+        trim();
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, byte[]>> eldest = entries.entrySet().iterator();
+        while (sizeBytes > maxBytes && eldest.hasNext()) {
+            sizeBytes -= eldest.next().getValue().length;
+            eldest.remove();
+        }
+    }
+
+    private byte[] load(String name, byte version) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        // Header placeholder, filled in once the payload length is known
+        buffer.write(new byte[MessageHeader.SIZE_V1]);
+        InputStream in = loader.open(name);
+        try {
+            int nRead;
+            byte[] data = new byte[16384];
+            while ((nRead = in.read(data, 0, data.length)) != -1) {
+                buffer.write(data, 0, nRead);
+            }
+        } finally {
+            in.close();
+        }
+        byte[] message = buffer.toByteArray();
+        int dataLength = message.length - MessageHeader.SIZE_V1;
+        synchronized (this) {
+            payloadLengths.put(name, (long) dataLength);
+        }
+        int codec = MessageHeader.codec(version);
+        if (codec != PayloadCodec.NONE) {
+            long start = System.nanoTime();
+            byte[] compressed = PayloadCodec.compress(message, MessageHeader.SIZE_V1, dataLength, codec);
+            synchronized (this) {
+                compressNanos += System.nanoTime() - start;
+            }
+            if (compressed.length < dataLength) {
+                message = new byte[MessageHeader.SIZE_V1 + compressed.length];
+                System.arraycopy(compressed, 0, message, MessageHeader.SIZE_V1, compressed.length);
+                dataLength = compressed.length;
+            } else {
+                version = MessageHeader.version(version);
+            }
+        }
+        if (dataLength > MessageHeader.MAX_LENGTH_V1)
+            throw new IOException(name + " is too large for protocol v1: " + dataLength + " bytes");
+        MessageHeader.write(message, version, dataLength);
+        return message;
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Payload codecs a central can ask for in the codec bits of the request's version byte.
+ * Deflate uses the zlib format and compresses text well; LZ ({@link LzCodec}) compresses less
+ * but costs a fraction of the CPU time.
+ */
+public final class PayloadCodec {
+
+    public static final int NONE = 0;
+    public static final int DEFLATE = 1;
+    public static final int LZ = 2;
+    public static final int[] SUPPORTED = {DEFLATE, LZ};
+
+    private PayloadCodec() {
+    }
+
+    public static boolean isSupported(int codec) {
+        return codec == NONE || codec == DEFLATE || codec == LZ;
+    }
+
+    public static String name(int codec) {
+        switch (codec) {
+            case NONE:
+                return "none";
+            case DEFLATE:
+                return "deflate";
+            case LZ:
+                return "lz";
+            default:
+                return "codec " + codec;
+        }
+    }
+
+    /**
+     * Compresses a whole payload, e.g. an asset that is compressed once and cached.
+     */
+    public static byte[] compress(byte[] data, int offset, int length, int codec) {
+        switch (codec) {
+            case DEFLATE:
+                Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+                try {
+                    deflater.setInput(data, offset, length);
+                    deflater.finish();
+                    ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 16);
+                    byte[] buffer = new byte[4096];
+                    while (!deflater.finished()) {
+                        out.write(buffer, 0, deflater.deflate(buffer));
+                    }
+                    return out.toByteArray();
+                } finally {
+                    deflater.end();
+                }
+            case LZ:
+                return LzCodec.compress(data, offset, length);
+            default:
+                throw new IllegalArgumentException("Unsupported codec: " + codec);
+        }
+    }
+
+    public static byte[] decompress(byte[] data, int offset, int length, int codec) throws IOException {
+        switch (codec) {
+            case DEFLATE:
+                Inflater inflater = new Inflater();
+                try {
+                    inflater.setInput(data, offset, length);
+                    ByteArrayOutputStream out = new ByteArrayOutputStream(length * 3);
+                    byte[] buffer = new byte[4096];
+                    while (!inflater.finished()) {
+                        int count = inflater.inflate(buffer);
+                        if (count == 0 && !inflater.finished()
+                                && (inflater.needsInput() || inflater.needsDictionary()))
+                            throw new IOException("Truncated deflate payload");
+                        out.write(buffer, 0, count);
+                    }
+                    return out.toByteArray();
+                } catch (DataFormatException e) {
+                    throw new IOException("Corrupt deflate payload: " + e.getMessage());
+                } finally {
+                    inflater.end();
+                }
+            case LZ:
+                return LzCodec.decompress(data, offset, length);
+            default:
+                throw new IOException("Unsupported codec: " + codec);
+        }
+    }
+
+    /**
+     * Compresses dynamic data while it is read. The compressed length is not known in advance,
+     * so the message is framed with {@link MessageHeader#LENGTH_UNKNOWN}.
+     */
+    public static InputStream compressingStream(InputStream in, int codec) {
+        switch (codec) {
+            case DEFLATE:
+                return new DeflaterInputStream(in, new Deflater(Deflater.DEFAULT_COMPRESSION)) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            def.end();
+                        }
+                    }
+                };
+            case LZ:
+                return new LzCodec.CompressingInputStream(in);
+            default:
+                throw new IllegalArgumentException("Unsupported codec: " + codec);
+        }
+    }
+}
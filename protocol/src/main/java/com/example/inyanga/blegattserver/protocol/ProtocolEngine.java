@@ -0,0 +1,672 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Framing, chunking, reassembly and notification scheduling for every connected central,
+ * independent of android.bluetooth. The link layer reports connection events, writes and
+ * notification completions here and receives notifications and write responses through a
+ * {@link GattTransport}. The engine is not thread-safe: it owns all session state and must only
+ * be called from the transport's event loop, which is also where postDelayed() tasks run.
+ */
+public class ProtocolEngine {
+
+    private static final long STALL_RETRY_DELAY = 20; //milliseconds
+    static final int MAX_INBOUND_LENGTH = 1024 * 1024;
+    private static final int MAX_PREPARED_LENGTH = 4096;
+    private static final int MAX_CHECKPOINTS = 32;
+    private static final long CHECKPOINT_RETENTION = 10 * 60 * 1000; //milliseconds
+
+    private final GattTransport transport;
+    private final ProtocolLog log;
+    private final Map<String, TransferSession> sessions = new HashMap<>();
+    private final NotificationScheduler scheduler = new NotificationScheduler();
+    private final BufferPool bufferPool = new BufferPool(64 * 1024, 2);
+    private final TransferMetrics metrics = new TransferMetrics();
+    private final CheckpointStore checkpoints = new CheckpointStore(MAX_CHECKPOINTS, CHECKPOINT_RETENTION);
+    private int initialWindow = NotificationWindow.DEFAULT_INITIAL_SIZE;
+    private int maxWindow = NotificationWindow.DEFAULT_MAX_SIZE;
+    private MessageHandler messageHandler;
+    private int stripeCount = 1;
+    private GattTrace trace;
+    private final Map<String, LoadGenerator> loads = new HashMap<>();
+
+    public ProtocolEngine(GattTransport transport, ProtocolLog log, MessageHandler messageHandler) {
+        this.transport = transport;
+        this.log = log;
+        this.messageHandler = messageHandler;
+    }
+
+    public void setMessageHandler(MessageHandler messageHandler) {
+        this.messageHandler = messageHandler;
+    }
+
+    public TransferMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets how many notifications each central may have outstanding at once, for centrals that
+     * connect afterwards. Resize {@link TransferSession#getNotificationWindow()} to tune one
+     * handset; those whose stack only accepts one notification at a time need maxSize 1.
+     */
+    public void setNotificationWindow(int initialSize, int maxSize) {
+        initialWindow = initialSize;
+        maxWindow = maxSize;
+    }
+
+    /**
+     * Number of data characteristics buffered messages are striped across, 1 to disable.
+     * Streamed, resumable and reliable transfers always use the main characteristic.
+     */
+    public void setStripeCount(int stripeCount) {
+        this.stripeCount = Math.max(1, stripeCount);
+    }
+
+    public int getStripeCount() {
+        return stripeCount;
+    }
+
+    /**
+     * Records notifications and transfer boundaries into trace, or stops recording if null.
+     */
+    public void setTrace(GattTrace trace) {
+        this.trace = trace;
+    }
+
+    public TransferSession getSession(String address) {
+        return sessions.get(address);
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Ends every session and drops all outbound work, e.g. when the server is stopped and no
+     * disconnect callbacks will follow.
+     */
+    public void reset() {
+        for (String address : new ArrayList<>(sessions.keySet())) {
+            onDisconnected(address);
+        }
+        scheduler.clear();
+    }
+
+    /***********************************************************************************************
+     Connection events
+     **********************************************************************************************/
+
+    public TransferSession onConnected(String address) {
+        TransferSession session = new TransferSession(address,
+                new InboundAssembler(bufferPool, MAX_INBOUND_LENGTH, MAX_PREPARED_LENGTH),
+                new NotificationWindow(initialWindow, maxWindow));
+        sessions.put(address, session);
+        return session;
+    }
+
+    public TransferSession onDisconnected(String address) {
+        TransferSession session = sessions.remove(address);
+        if (session == null) return null;
+        scheduler.remove(session);
+        session.getInbound().reset();
+        session.finishSending();
+        session.setReliable(null);
+        session.getRecords().clear();
+        LoadGenerator load = loads.remove(address);
+        if (load != null) load.onDisconnected();
+        long connectedNanos = session.getConnectedTime(System.nanoTime());
+        metrics.onDisconnected(connectedNanos);
+        log.log("Connection time: " + connectedNanos / 1000000 + " ms", true, 0);
+        return session;
+    }
+
+    public void onMtuChanged(String address, int mtu) {
+        TransferSession session = sessions.get(address);
+        if (session == null) return;
+        session.setMtu(mtu);
+        log.log("MTU changed: " + mtu, true, 0);
+        log.log("Packet size: " + session.getPacketSize(), true, 0);
+        RecordCoalescer records = session.getRecords();
+        int dropped = records.resize(session.getPacketSize());
+        if (dropped > 0) {
+            log.log(dropped + " records dropped, packet size: " + session.getPacketSize(), true, 0);
+            if (session.getSource() == records && session.isTransferDone()) finishTransfer(session);
+        }
+        // The central maps sequence numbers to offsets with the chunk size it has seen, so
+        // reliable chunks cannot be cut again
+        ReliableSource reliable = session.getReliable();
+        if (reliable != null && !reliable.fits(session.getPacketSize())) {
+            session.setReliable(null);
+            if (session.getSource() == reliable)
+                failTransfer(session, "reliable chunks no longer fit the MTU");
+            else
+                log.log("Reliable transfer dropped: its chunks no longer fit the MTU", true, 0);
+        }
+    }
+
+    /***********************************************************************************************
+     Inbound
+     **********************************************************************************************/
+
+    /**
+     * Handles a write to the data characteristic. Writes without response carry uploads at full
+     * link speed; flow control is then up to the application protocol, i.e. a central waits for
+     * the answer to one message before it writes the next. Write responses carry no value.
+     */
+    public void onWrite(String address, int requestId, boolean preparedWrite,
+                        boolean responseNeeded, int offset, byte[] value) {
+        TransferSession session = sessions.get(address);
+        if (session == null) {
+            if (responseNeeded)
+                transport.sendResponse(address, requestId, GattTransport.GATT_FAILURE, offset,
+                        GattTransport.EMPTY_VALUE);
+            return;
+        }
+        InboundAssembler inbound = session.getInbound();
+        if (preparedWrite) {
+            int status = inbound.onPreparedWrite(offset, value);
+            // Prepare write responses must echo the queued value and offset
+            if (responseNeeded)
+                transport.sendResponse(address, requestId, toGattStatus(status), offset, value);
+            return;
+        }
+
+        if (value != null) metrics.onBytesReceived(value.length);
+        boolean firstPacket = inbound.isIdle();
+        int status = inbound.onWrite(value);
+        if (status < InboundAssembler.STATUS_OK) {
+            log.log("Write rejected: " + status, true, 0);
+        } else if (firstPacket && value != null && value.length > 0) {
+            log.setStatus(ProtocolLog.STATUS_RECEIVING_DATA);
+            log.log("Data characteristic write request", true, 0);
+            log.log("Message length: " + inbound.getDataLength()
+                    + (responseNeeded ? "" : ", without write responses"), true, 0);
+            log.log("Receiving data: ", true, 1);
+        }
+        if (status >= InboundAssembler.STATUS_OK)
+            log.progress();
+        if (responseNeeded)
+            transport.sendResponse(address, requestId, toGattStatus(status), 0, GattTransport.EMPTY_VALUE);
+        else
+            metrics.onWriteWithoutResponse();
+
+        dispatch(session);
+    }
+
+    public void onExecuteWrite(String address, int requestId, boolean execute) {
+        TransferSession session = sessions.get(address);
+        if (session == null) {
+            transport.sendResponse(address, requestId, GattTransport.GATT_FAILURE, 0, GattTransport.EMPTY_VALUE);
+            return;
+        }
+        int status = session.getInbound().onExecuteWrite(session, execute, requestHandler);
+        if (status < InboundAssembler.STATUS_OK)
+            log.log("Execute write rejected: " + status, true, 0);
+        transport.sendResponse(address, requestId, toGattStatus(status), 0, GattTransport.EMPTY_VALUE);
+        dispatch(session);
+    }
+
+    private void dispatch(TransferSession session) {
+        session.getInbound().dispatch(session, requestHandler);
+    }
+
+    /**
+     * Counts the request before handing it to the pluggable handler. NACKs for the session's
+     * reliable transfer are answered here and not passed on, and so are control messages that
+     * carry no valid command; data requests and the other commands reach the handler. While a
+     * load test runs on the session, only a LOAD that replaces it gets through, as any other
+     * transfer would take the generator's place and stall it.
+     */
+    private MessageHandler requestHandler = new MessageHandler() {
+        @Override
+        public void onMessage(TransferSession session, byte version, ByteBuffer payload) {
+            TransferRequest request = TransferRequest.parse(version, payload);
+            if (request == null && MessageHeader.isControl(version)) {
+                log.log("Malformed control message dropped", true, 0);
+                return;
+            }
+            if (request != null && request.getCommand() == TransferRequest.NACK) {
+                onNack(session, request);
+                return;
+            }
+            metrics.onRequest();
+            if (loads.containsKey(session.getAddress())
+                    && (request == null || request.getCommand() != TransferRequest.LOAD)) {
+                log.log("Request ignored while a load test runs", true, 0);
+                return;
+            }
+            session.markRequest(System.nanoTime());
+            if (messageHandler != null) messageHandler.onMessage(session, version, payload);
+        }
+    };
+
+    private void onNack(TransferSession session, TransferRequest nack) {
+        ReliableSource reliable = session.getReliable();
+        if (reliable == null) {
+            log.log("NACK without a reliable transfer", true, 0);
+            return;
+        }
+        int marked = reliable.markMissing(nack.getFirstSequence(), nack.getBitmap());
+        if (marked == 0 && !reliable.hasRemaining()) {
+            if (session.getSource() != reliable) session.setReliable(null);
+            log.log("Reliable transfer confirmed, retransmitted " + reliable.getRetransmitted()
+                    + " of " + reliable.getChunkCount() + " chunks", true, 0);
+            return;
+        }
+        log.log("NACK: " + marked + " chunks missing", true, 0);
+        metrics.onChunkRetransmit(marked);
+        if (session.getSource() != reliable) {
+            session.startSending(reliable);
+            session.setReliable(reliable);
+        }
+        scheduler.schedule(session);
+        sendData();
+    }
+
+    private static int toGattStatus(int assemblerStatus) {
+        switch (assemblerStatus) {
+            case InboundAssembler.STATUS_OK:
+            case InboundAssembler.STATUS_COMPLETE:
+                return GattTransport.GATT_SUCCESS;
+            case InboundAssembler.STATUS_TOO_LONG:
+                return GattTransport.GATT_INVALID_ATTRIBUTE_LENGTH;
+            case InboundAssembler.STATUS_INVALID_OFFSET:
+                return GattTransport.GATT_INVALID_OFFSET;
+            default:
+                return GattTransport.GATT_FAILURE;
+        }
+    }
+
+    /***********************************************************************************************
+     Outbound
+     **********************************************************************************************/
+
+    public void send(TransferSession session, ByteBuffer message) {
+        if (stripeCount > 1)
+            session.startSending(new StripedSource(message, stripeCount, session.getPacketBuffer()));
+        else
+            session.startSending(message);
+        startTransfer(session);
+    }
+
+    public void send(TransferSession session, ChunkSource source) {
+        session.startSending(source);
+        startTransfer(session);
+    }
+
+    /**
+     * Starts sending a message that the host app produces from any thread. The stream buffers
+     * only its capacity; producers block in write() or are asked for more through its
+     * {@link OutboundStream.DemandListener} as notifications complete, so they are throttled to
+     * the link rate. A stream aborted by its producer aborts the transfer.
+     */
+    public void send(final TransferSession session, final OutboundStream stream) {
+        session.startSending(stream);
+        if (stream.isAborted()) {
+            failTransfer(session, "stream aborted before it was sent");
+            return;
+        }
+        stream.setWakeup(new Runnable() {
+            @Override
+            public void run() {
+                transport.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (session.getSource() != stream) return;
+                        if (stream.isAborted()) {
+                            failTransfer(session, "stream aborted by its producer");
+                            return;
+                        }
+                        scheduler.schedule(session);
+                        sendData();
+                    }
+                }, 0);
+            }
+        });
+        startTransfer(session);
+        stream.signalDemand();
+    }
+
+    /**
+     * Starts an identified transfer whose progress is checkpointed, so it can be continued with
+     * resume() after the link drops.
+     */
+    public void send(TransferSession session, int transferId, ResumableMessage message)
+            throws IOException {
+        TransferCheckpoint checkpoint = new TransferCheckpoint(session.getAddress(), transferId, message,
+                System.nanoTime());
+        session.startSending(message.open(session.getPacketBuffer(), 0));
+        session.setCheckpoint(checkpoint);
+        checkpoints.put(checkpoint, System.nanoTime());
+        startTransfer(session);
+    }
+
+    /**
+     * Sends the rest of an identified transfer, starting at offset bytes into the framed
+     * message, or at the last acknowledged offset for {@link TransferRequest#FROM_CHECKPOINT}.
+     * Only the central that started the transfer can resume it.
+     *
+     * @return false if the session's central has no such transfer, it has expired or the offset
+     * is past its end
+     */
+    public boolean resume(TransferSession session, int transferId, long offset) throws IOException {
+        long now = System.nanoTime();
+        TransferCheckpoint checkpoint = checkpoints.get(session.getAddress(), transferId, now);
+        if (checkpoint == null) return false;
+        if (offset == TransferRequest.FROM_CHECKPOINT) offset = checkpoint.getAcknowledged();
+        long length = checkpoint.getMessage().length();
+        if (offset < 0 || (length >= 0 && offset > length)) return false;
+
+        log.log("Resuming transfer " + transferId + " at " + offset
+                + " (acknowledged " + checkpoint.getAcknowledged() + ")", true, 0);
+        metrics.onResumed(offset);
+        checkpoint.rewind(offset, now);
+        if (offset == length) {
+            checkpoint.markComplete();
+            return true;
+        }
+        session.startSending(checkpoint.getMessage().open(session.getPacketBuffer(), offset));
+        session.setCheckpoint(checkpoint);
+        startTransfer(session);
+        return true;
+    }
+
+    /**
+     * Sends an in-memory message in reliable mode, see {@link ReliableSource}. The message is
+     * retained after the last chunk to answer NACKs.
+     */
+    public void sendReliable(TransferSession session, ByteBuffer message) {
+        ReliableSource reliable = new ReliableSource(message, session.getPacketSize(),
+                session.getPacketBuffer());
+        session.startSending(reliable);
+        session.setReliable(reliable);
+        log.log("Reliable transfer: " + reliable.getChunkCount() + " chunks of "
+                + reliable.getChunkSize() + " bytes", true, 0);
+        startTransfer(session);
+    }
+
+    /**
+     * Starts a seeded load test on the session, replacing one that is running. Generated
+     * messages are sent without per-transfer logging; the generator reports periodically
+     * instead.
+     */
+    public LoadGenerator startLoad(TransferSession session, LoadProfile profile, long seed) {
+        stopLoad(session);
+        LoadGenerator load = new LoadGenerator(this, session, profile, seed, log);
+        loads.put(session.getAddress(), load);
+        load.start();
+        return load;
+    }
+
+    /**
+     * Ends the session's load test once the message being sent is out.
+     */
+    public void stopLoad(TransferSession session) {
+        LoadGenerator load = loads.get(session.getAddress());
+        if (load != null) load.stop();
+    }
+
+    void sendQuietly(TransferSession session, ChunkSource source) {
+        session.startSending(source);
+        startTransfer(session, true);
+    }
+
+    void postDelayed(Runnable task, long delayMillis) {
+        transport.postDelayed(task, delayMillis);
+    }
+
+    void onLoadFinished(TransferSession session) {
+        loads.remove(session.getAddress());
+    }
+
+    /**
+     * Queues a small record for the central. Records are coalesced into full notifications
+     * ({@link RecordCoalescer}) and sent once they fill the session's flush threshold or the
+     * oldest has waited its delay; a transfer in progress is finished first.
+     *
+     * @return false if the record does not fit a frame at the session's MTU and was dropped
+     */
+    public boolean sendRecord(TransferSession session, byte[] record) {
+        if (!RecordCoalescer.fits(record.length, session.getPacketSize())) {
+            log.log("Record of " + record.length + " bytes dropped, packet size: "
+                    + session.getPacketSize(), true, 0);
+            return false;
+        }
+        RecordCoalescer records = session.getRecords();
+        long now = System.nanoTime();
+        records.add(record, session.getPacketSize(), now);
+        if (records.hasRemaining() && startRecords(session)) sendData();
+        armDeadline(session, now);
+        return true;
+    }
+
+    /**
+     * Makes the coalesced records the session's source unless another transfer is in progress.
+     *
+     * @return true if the session was scheduled
+     */
+    private boolean startRecords(TransferSession session) {
+        RecordCoalescer records = session.getRecords();
+        if (!session.isSending()) session.startSending(records);
+        else if (session.getSource() != records) return false;
+        scheduler.schedule(session);
+        return true;
+    }
+
+    private void armDeadline(final TransferSession session, long now) {
+        final RecordCoalescer records = session.getRecords();
+        long delay = records.getDelayNanos(now);
+        if (delay < 0 || records.isDeadlinePending()) return;
+        records.setDeadlinePending(true);
+        transport.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                records.setDeadlinePending(false);
+                if (sessions.get(session.getAddress()) != session) return;
+                long now = System.nanoTime();
+                long delay = records.getDelayNanos(now);
+                if (delay < 0) return;
+                if (delay > 0) {
+                    armDeadline(session, now);
+                    return;
+                }
+                records.flush();
+                if (startRecords(session)) sendData();
+            }
+        }, (delay + 999999) / 1000000);
+    }
+
+    private void startTransfer(TransferSession session) {
+        startTransfer(session, false);
+    }
+
+    private void startTransfer(TransferSession session, boolean quiet) {
+        scheduler.schedule(session);
+        if (trace != null)
+            trace.record(GattTrace.TRANSFER_START, session.getAddress(), 0, session.getPacketSize(), 0, 0);
+        if (!quiet && log.isVerbose())
+            log.log("Packet size: " + session.getPacketSize(), true, 0);
+        sendData();
+    }
+
+    /**
+     * Sends packets of whichever sessions the scheduler picks for as long as their notification
+     * windows have credits left. Credits come back through onNotificationSent; if the link
+     * refuses a notification while nothing of that central is in flight, sending is retried
+     * after STALL_RETRY_DELAY.
+     */
+    private void sendData() {
+        TransferSession session;
+        while ((session = scheduler.next()) != null) {
+            NotificationWindow window = session.getNotificationWindow();
+            // The scheduler only picks sessions with credit; one without waits for a confirmation
+            if (!window.tryAcquire()) continue;
+            byte[] byteValue = session.nextPacket(session.getPacketSize());
+            if (byteValue == null) {
+                // The source ended, failed or has nothing it can send yet; it is scheduled again
+                // when it has
+                window.release();
+                if (session.isTransferDone()) finishTransfer(session);
+                else scheduler.remove(session);
+                continue;
+            }
+            boolean accepted = transport.notify(session.getAddress(), session.getPacketStripe(), byteValue);
+            if (trace != null)
+                trace.record(GattTrace.NOTIFY, session.getAddress(), accepted ? 1 : 0, byteValue.length,
+                        session.getPacketStripe(), 0);
+            if (!accepted) {
+                session.requeue(byteValue);
+                window.onRejected();
+                metrics.onNotificationRetry();
+                log.log("Notification stall, window: " + window.getSize(), true, 0);
+                if (window.getInFlight() == 0 && !retryPending) {
+                    retryPending = true;
+                    transport.postDelayed(retryRunnable, STALL_RETRY_DELAY);
+                }
+                return;
+            }
+            if (session.getSource() == session.getRecords())
+                metrics.onRecordFrame(RecordCoalescer.countRecords(byteValue));
+        }
+    }
+
+    private boolean retryPending;
+
+    private Runnable retryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            retryPending = false;
+            sendData();
+        }
+    };
+
+    public void onNotificationSent(String address, boolean success) {
+        TransferSession session = sessions.get(address);
+        if (session != null) {
+            session.getNotificationWindow().onSent(success);
+            long now = System.nanoTime();
+            long latency = session.onPacketSent(now);
+            if (latency >= 0)
+                metrics.onNotificationSent(session.getLastConfirmedSize(), latency, success);
+            // Packets of a replaced transfer do not count towards the current one
+            if (session.isLastConfirmedStale()) latency = -1;
+            if (latency >= 0 && success && session.getCheckpoint() != null)
+                session.getCheckpoint().onAcknowledged(session.getLastConfirmedSize(), now);
+            ChunkSource source = session.getSource();
+            if (latency >= 0 && source instanceof ReliableSource) {
+                ((ReliableSource) source).onSent(success);
+                if (!success) {
+                    metrics.onChunkRetransmit(1);
+                    scheduler.schedule(session);
+                }
+            }
+            long firstByte = (success && latency >= 0) ? session.takeFirstByteLatency(now) : -1;
+            if (firstByte >= 0)
+                metrics.onFirstByte(firstByte);
+        }
+        if (success) {
+            if (session != null) {
+                if (session.getSentBytes() % 8 == 0)
+                    log.progress();
+                log.setStatus(ProtocolLog.STATUS_SENDING_DATA, session.getSentBytes());
+            }
+        } else {
+            log.log("Notification failure, window: "
+                    + ((session == null) ? 0 : session.getNotificationWindow().getSize()), true, 0);
+        }
+        ChunkSource source = (session == null) ? null : session.getSource();
+        if (session != null && session.isTransferDone())
+            finishTransfer(session);
+        sendData();
+        if (source instanceof OutboundStream && session.getSource() == source)
+            ((OutboundStream) source).signalDemand();
+    }
+
+    private void finishTransfer(TransferSession session) {
+        RecordCoalescer records = session.getRecords();
+        if (session.getSource() == records) {
+            // Records below the flush threshold wait for their deadline, which is still armed
+            session.finishSending();
+            if (records.hasRemaining()) startRecords(session);
+            return;
+        }
+        ChunkSource source = session.getSource();
+        long transferNanos = session.getTransferTime(System.nanoTime());
+        if (trace != null)
+            trace.record(GattTrace.TRANSFER_END, session.getAddress(), 0, session.getSentBytes(), 0, transferNanos);
+        LoadGenerator load = loads.get(session.getAddress());
+        if (load != null && load.isSending(source)) {
+            session.finishSending();
+            load.onMessageSent();
+            return;
+        }
+        boolean verbose = log.isVerbose();
+        if (source instanceof StreamChunkSource && ((StreamChunkSource) source).getError() != null) {
+            log.log("Transfer aborted: " + ((StreamChunkSource) source).getError().getMessage(), true, 1);
+            metrics.onTransferAborted();
+        } else if (verbose)
+            log.log("Transfer complete: " + session.getAddress(), true, 1);
+        long transferMillis = Math.max(1, transferNanos / 1000000);
+        if (verbose)
+            log.log("Sent bytes: " + session.getSentBytes() + " in " + transferMillis + " ms ("
+                    + session.getSentBytes() * 1000 / transferMillis + " B/s)", true, 0);
+        reportCompression(session, transferMillis, verbose);
+        if (session.getCheckpoint() != null)
+            session.getCheckpoint().markComplete();
+        if (verbose)
+            log.log(metrics.report(), true, 0);
+        session.finishSending();
+        if (records.hasRemaining() || records.getDelayNanos(System.nanoTime()) == 0) {
+            records.flush();
+            startRecords(session);
+        }
+        if (!hasActiveTransfers())
+            log.setStatus(ProtocolLog.STATUS_CONNECTED);
+    }
+
+    /**
+     * Ends the session's transfer before its source ran out. Notifications of it that are still
+     * in flight are no longer counted; a checkpoint stays resumable from what was acknowledged.
+     */
+    private void failTransfer(TransferSession session, String reason) {
+        ChunkSource source = session.getSource();
+        if (source == null || source == session.getRecords()) return;
+        if (trace != null)
+            trace.record(GattTrace.TRANSFER_END, session.getAddress(), 1, session.getSentBytes(), 0,
+                    session.getTransferTime(System.nanoTime()));
+        log.log("Transfer aborted: " + reason, true, 1);
+        metrics.onTransferAborted();
+        session.finishSending();
+        if (session.getRecords().hasRemaining() && startRecords(session)) sendData();
+        if (!hasActiveTransfers())
+            log.setStatus(ProtocolLog.STATUS_CONNECTED);
+    }
+
+    /**
+     * Compares what was sent with the uncompressed payload and estimates the airtime saved at
+     * the throughput this transfer achieved.
+     */
+    private void reportCompression(TransferSession session, long transferMillis, boolean verbose) {
+        long payloadLength = session.getPayloadLength();
+        int sentBytes = session.getSentBytes();
+        if (payloadLength <= 0 || sentBytes <= 0) return;
+        long savedMillis = transferMillis * (payloadLength - sentBytes) / sentBytes;
+        metrics.onCompressedTransfer(payloadLength, sentBytes, savedMillis);
+        if (verbose)
+            log.log(String.format(Locale.US, "Compression: %d -> %d bytes (%.2f), saved ~%d ms",
+                    payloadLength, sentBytes, (double) sentBytes / payloadLength, savedMillis), true, 0);
+    }
+
+    private boolean hasActiveTransfers() {
+        for (TransferSession session : sessions.values()) {
+            if (session.isSending()) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,24 @@
+package com.example.inyanga.blegattserver.protocol;
+
+/**
+ * Human-readable output of the protocol engine, implemented by the app's Logger.
+ */
+public interface ProtocolLog {
+
+    String STATUS_CONNECTED = "Connected";
+    String STATUS_RECEIVING_DATA = "Receiving data";
+    String STATUS_SENDING_DATA = "Sending data";
+
+    void log(String msg, boolean newLine, int emptyLines);
+
+    /**
+     * @return false to skip the per-transfer summaries, which are formatted on the event loop
+     */
+    boolean isVerbose();
+
+    void progress();
+
+    void setStatus(String status);
+
+    void setStatus(String status, long bytes);
+}
@@ -0,0 +1,190 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Packs small records, e.g. telemetry samples, into as few notifications as possible, in the
+ * spirit of Nagle's algorithm. Records are queued until they fill flushThreshold bytes of a
+ * frame, by default a whole packet, or until the oldest of them has waited maxDelay; then every
+ * queued record goes out in frames of whole records. Each frame is one self-contained
+ * notification:
+ * <pre>
+ * frame: RECORD_FRAME (1) | length (1) | record | length (1) | record ...
+ * </pre>
+ * A threshold of 1 sends every record at once, a long delay trades latency for fewer
+ * notifications. The coalescer is the session's source while it has frames to send; closing it
+ * keeps the records queued.
+ */
+public class RecordCoalescer implements ChunkSource {
+
+    public static final int MAX_RECORD_SIZE = 0xFF;
+    public static final long DEFAULT_MAX_DELAY = 5; //milliseconds
+    public static final int FULL_PACKET = Integer.MAX_VALUE;
+
+    private static final int FRAME_HEADER_SIZE = 1;
+    private static final int LENGTH_SIZE = 1;
+
+    private final PacketBuffer packets;
+    private final ArrayDeque<Record> queue = new ArrayDeque<>();
+    private int queuedBytes;
+    private int packetSize;
+    private int flushThreshold = FULL_PACKET;
+    private long maxDelayNanos = DEFAULT_MAX_DELAY * 1000000;
+    private boolean flushing;
+    private boolean deadlinePending;
+
+    public RecordCoalescer(PacketBuffer packets) {
+        this.packets = packets;
+    }
+
+    /**
+     * @param flushThreshold frame bytes that are sent without waiting, capped at a whole packet
+     * @param maxDelayMillis longest time a record waits for others to share its frame
+     */
+    public void configure(int flushThreshold, long maxDelayMillis) {
+        this.flushThreshold = Math.max(1, flushThreshold);
+        this.maxDelayNanos = Math.max(0, maxDelayMillis) * 1000000;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayNanos / 1000000;
+    }
+
+    /**
+     * @return true if a record of recordLength bytes fits a frame of a packetSize-byte packet
+     */
+    public static boolean fits(int recordLength, int packetSize) {
+        return recordLength <= MAX_RECORD_SIZE && recordLength <= packetSize - FRAME_HEADER_SIZE - LENGTH_SIZE;
+    }
+
+    /**
+     * Queues a copy of record for a session whose packets are packetSize bytes.
+     */
+    public void add(byte[] record, int packetSize, long now) {
+        if (!fits(record.length, packetSize))
+            throw new IllegalArgumentException("Record of " + record.length + " bytes does not fit a frame");
+        this.packetSize = packetSize;
+        queue.addLast(new Record(record.clone(), now));
+        queuedBytes += LENGTH_SIZE + record.length;
+    }
+
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    /**
+     * @return nanoseconds until the oldest queued record is due, 0 if it is overdue, or -1 if
+     * nothing is queued
+     */
+    public long getDelayNanos(long now) {
+        Record oldest = queue.peekFirst();
+        if (oldest == null) return -1;
+        return Math.max(0, oldest.queuedAt + maxDelayNanos - now);
+    }
+
+    /**
+     * Sends every queued record, whether or not the frames are full.
+     */
+    public void flush() {
+        if (!queue.isEmpty()) flushing = true;
+    }
+
+    /**
+     * Set while a deadline task is posted, so only one is pending at a time.
+     */
+    boolean isDeadlinePending() {
+        return deadlinePending;
+    }
+
+    void setDeadlinePending(boolean deadlinePending) {
+        this.deadlinePending = deadlinePending;
+    }
+
+    /**
+     * @return number of records in a frame returned by next()
+     */
+    public static int countRecords(byte[] frame) {
+        int count = 0;
+        for (int position = FRAME_HEADER_SIZE; position < frame.length; position += LENGTH_SIZE + (frame[position] & 0xFF)) {
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public boolean hasRemaining() {
+        if (queue.isEmpty()) return false;
+        return flushing || FRAME_HEADER_SIZE + queuedBytes >= Math.min(flushThreshold, packetSize);
+    }
+
+    @Override
+    public byte[] next(int packetSize) {
+        if (!hasRemaining()) return null;
+        int length = FRAME_HEADER_SIZE;
+        int count = 0;
+        for (Record record : queue) {
+            if (length + LENGTH_SIZE + record.data.length > packetSize) break;
+            length += LENGTH_SIZE + record.data.length;
+            count++;
+        }
+        if (count == 0) return null;
+
+        byte[] dst = packets.obtain(length, packetSize);
+        dst[0] = MessageHeader.RECORD_FRAME;
+        int position = FRAME_HEADER_SIZE;
+        for (int i = 0; i < count; i++) {
+            Record record = queue.pollFirst();
+            dst[position++] = (byte) record.data.length;
+            System.arraycopy(record.data, 0, dst, position, record.data.length);
+            position += record.data.length;
+            queuedBytes -= LENGTH_SIZE + record.data.length;
+        }
+        if (queue.isEmpty()) flushing = false;
+        return dst;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Adapts the queue to a new packet size, e.g. after the MTU changed. Records that no longer
+     * fit a frame are dropped, as they could never be sent.
+     *
+     * @return number of records dropped
+     */
+    public int resize(int packetSize) {
+        this.packetSize = packetSize;
+        int dropped = 0;
+        Iterator<Record> records = queue.iterator();
+        while (records.hasNext()) {
+            Record record = records.next();
+            if (fits(record.data.length, packetSize)) continue;
+            records.remove();
+            queuedBytes -= LENGTH_SIZE + record.data.length;
+            dropped++;
+        }
+        if (queue.isEmpty()) flushing = false;
+        return dropped;
+    }
+
+    /**
+     * Drops every queued record, e.g. when the central disconnects.
+     */
+    public void clear() {
+        queue.clear();
+        queuedBytes = 0;
+        flushing = false;
+    }
+
+    private static class Record {
+        final byte[] data;
+        final long queuedAt;
+
+        Record(byte[] data, long queuedAt) {
+            this.data = data;
+            this.queuedAt = queuedAt;
+        }
+    }
+}
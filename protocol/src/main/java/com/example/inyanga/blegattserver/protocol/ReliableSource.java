@@ -0,0 +1,190 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+/**
+ * Reliable mode for an in-memory message. The framed message is followed by a CRC32 of its
+ * payload and cut into fixed-size chunks, each sent with a 16-bit big-endian sequence number in
+ * front. The message stays retained after the last chunk so chunks the central reports missing
+ * with a NACK bitmap ({@link TransferRequest#NACK}), or that the stack failed to send, are sent
+ * again on their own.
+ * <pre>
+ * notification: sequence (2) | message bytes [sequence * chunkSize, +chunkSize)
+ * message:      header | payload | CRC32 of payload (4)
+ * </pre>
+ */
+public class ReliableSource implements ChunkSource {
+
+    public static final int SEQUENCE_SIZE = 2;
+    public static final int CRC_SIZE = 4;
+    public static final int MAX_CHUNKS = 0x10000;
+
+    private final ByteBuffer message;
+    private final ByteBuffer view;
+    private final byte[] trailer = new byte[CRC_SIZE];
+    private final int length;
+    private final int chunkSize;
+    private final int chunkCount;
+    private final PacketBuffer packets;
+    private final BitSet missing = new BitSet();
+    private int nextSequence;
+    private int[] sent = new int[8];
+    private int sentHead;
+    private int sentCount;
+    private int retransmitted;
+
+    /**
+     * @param packetSize notification size the chunks are cut for, fixed for the whole message
+     */
+    public ReliableSource(ByteBuffer message, int packetSize, PacketBuffer packets) {
+        this.message = message.duplicate();
+        this.view = message.duplicate();
+        this.packets = packets;
+        this.chunkSize = packetSize - SEQUENCE_SIZE;
+        this.length = this.message.remaining() + CRC_SIZE;
+        this.chunkCount = (length + chunkSize - 1) / chunkSize;
+        if (chunkSize <= 0 || chunkCount > MAX_CHUNKS)
+            throw new IllegalArgumentException(length + " bytes do not fit in " + MAX_CHUNKS
+                    + " chunks of " + chunkSize);
+
+        long crc = crc(this.message, MessageHeader.size(this.message.get(this.message.position())));
+        for (int i = 0; i < CRC_SIZE; i++) {
+            trailer[i] = (byte) (crc >>> (8 * (CRC_SIZE - 1 - i)));
+        }
+    }
+
+    public static long crc(ByteBuffer message, int headerSize) {
+        CRC32 crc = new CRC32();
+        ByteBuffer payload = message.duplicate();
+        payload.position(payload.position() + headerSize);
+        byte[] block = new byte[Math.min(4096, Math.max(1, payload.remaining()))];
+        while (payload.hasRemaining()) {
+            int count = Math.min(block.length, payload.remaining());
+            payload.get(block, 0, count);
+            crc.update(block, 0, count);
+        }
+        return crc.getValue();
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return false if a chunk with its sequence number is larger than packetSize, e.g. after
+     * the MTU dropped
+     */
+    public boolean fits(int packetSize) {
+        return SEQUENCE_SIZE + chunkSize <= packetSize;
+    }
+
+    /**
+     * Number of chunks sent more than once so far.
+     */
+    public int getRetransmitted() {
+        return retransmitted;
+    }
+
+    @Override
+    public boolean hasRemaining() {
+        return nextSequence < chunkCount || !missing.isEmpty();
+    }
+
+    /**
+     * Missing chunks go first, then the next new one. The chunk size was fixed when the transfer
+     * started; the engine ends the transfer once it no longer fits the packet size.
+     */
+    @Override
+    public byte[] next(int packetSize) {
+        if (!fits(packetSize))
+            throw new IllegalStateException("Chunks of " + chunkSize + " bytes do not fit packets of "
+                    + packetSize);
+        int sequence = missing.nextSetBit(0);
+        if (sequence >= 0) {
+            missing.clear(sequence);
+            retransmitted++;
+        } else if (nextSequence < chunkCount) {
+            sequence = nextSequence++;
+        } else {
+            return null;
+        }
+        int start = sequence * chunkSize;
+        int count = Math.min(chunkSize, length - start);
+        byte[] dst = packets.obtain(SEQUENCE_SIZE + count, SEQUENCE_SIZE + chunkSize);
+        dst[0] = (byte) (sequence >>> 8);
+        dst[1] = (byte) sequence;
+        copy(start, dst, SEQUENCE_SIZE, count);
+        pushSent(sequence);
+        return dst;
+    }
+
+    /**
+     * Confirms the oldest chunk in flight; a failed one is queued to be sent again.
+     */
+    public void onSent(boolean success) {
+        if (sentCount == 0) return;
+        int sequence = sent[sentHead];
+        sentHead = (sentHead + 1) % sent.length;
+        sentCount--;
+        if (!success) missing.set(sequence);
+    }
+
+    /**
+     * Queues the chunks set in a NACK bitmap: bit i (least significant bit first) of the bitmap
+     * stands for chunk firstSequence + i.
+     *
+     * @return number of chunks queued
+     */
+    public int markMissing(int firstSequence, byte[] bitmap) {
+        int marked = 0;
+        for (int i = 0; i < bitmap.length * 8; i++) {
+            int sequence = firstSequence + i;
+            if (sequence >= nextSequence) break;
+            if ((bitmap[i >> 3] & (1 << (i & 7))) != 0 && !missing.get(sequence)) {
+                missing.set(sequence);
+                marked++;
+            }
+        }
+        return marked;
+    }
+
+    /**
+     * Kept for retransmission until the central confirms the message or the session ends.
+     */
+    @Override
+    public void close() {
+        sentCount = 0;
+        sentHead = 0;
+    }
+
+    private void copy(int start, byte[] dst, int offset, int count) {
+        int messageLength = length - CRC_SIZE;
+        int fromMessage = Math.max(0, Math.min(count, messageLength - start));
+        if (fromMessage > 0) {
+            view.position(message.position() + start);
+            view.get(dst, offset, fromMessage);
+        }
+        if (fromMessage < count)
+            System.arraycopy(trailer, start + fromMessage - messageLength, dst, offset + fromMessage,
+                    count - fromMessage);
+    }
+
+    private void pushSent(int sequence) {
+        if (sentCount == sent.length) {
+            int[] grown = new int[sentCount * 2];
+            for (int i = 0; i < sentCount; i++) {
+                grown[i] = sent[(sentHead + i) % sentCount];
+            }
+            sent = grown;
+            sentHead = 0;
+        }
+        sent[(sentHead + sentCount) % sent.length] = sequence;
+        sentCount++;
+    }
+}
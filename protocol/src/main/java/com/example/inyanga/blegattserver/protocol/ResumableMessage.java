@@ -0,0 +1,20 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import java.io.IOException;
+
+/**
+ * An outbound message that can be sent again from any offset, so a transfer interrupted by a
+ * disconnect can be resumed with only its missing tail.
+ */
+public interface ResumableMessage {
+
+    /**
+     * @param offset position in the framed message (header included) to start from
+     */
+    ChunkSource open(PacketBuffer packets, long offset) throws IOException;
+
+    /**
+     * @return length of the framed message, or -1 if it is only known once fully sent
+     */
+    long length();
+}
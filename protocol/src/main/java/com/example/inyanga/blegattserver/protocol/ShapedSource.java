@@ -0,0 +1,87 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Cuts a framed message into packets whose sizes follow a {@link ChunkSizeDistribution} and can
+ * drop or swap packets on purpose, so a central's reassembly and error handling can be tested
+ * under repeatable load. All randomness comes from the given Random, so a seed reproduces the
+ * exact packet sequence.
+ */
+public class ShapedSource implements ChunkSource {
+
+    private final ByteBuffer message;
+    private final ChunkSizeDistribution sizes;
+    private final Random random;
+    private final double lossRate;
+    private final double reorderRate;
+    private final PacketBuffer packets = new PacketBuffer();
+    private final PacketBuffer heldPackets = new PacketBuffer();
+    private byte[] held;
+    private int dropped;
+    private int reordered;
+
+    /**
+     * @param lossRate probability that a packet is left out of the message
+     * @param reorderRate probability that a packet is sent after the one following it
+     */
+    public ShapedSource(ByteBuffer message, ChunkSizeDistribution sizes, Random random,
+                        double lossRate, double reorderRate) {
+        this.message = message.duplicate();
+        this.sizes = sizes;
+        this.random = random;
+        this.lossRate = lossRate;
+        this.reorderRate = reorderRate;
+    }
+
+    public int getDropped() {
+        return dropped;
+    }
+
+    public int getReordered() {
+        return reordered;
+    }
+
+    @Override
+    public boolean hasRemaining() {
+        return held != null || message.hasRemaining();
+    }
+
+    @Override
+    public byte[] next(int packetSize) {
+        if (held != null) {
+            byte[] packet = held;
+            held = null;
+            return packet;
+        }
+        byte[] packet = cut(packetSize);
+        while (packet != null && lossRate > 0 && random.nextDouble() < lossRate) {
+            dropped++;
+            packet = cut(packetSize);
+        }
+        if (packet == null || reorderRate <= 0 || !message.hasRemaining()
+                || random.nextDouble() >= reorderRate)
+            return packet;
+
+        // The packet arrays are reused, so the one sent second is copied aside
+        held = heldPackets.obtain(packet.length, packetSize);
+        System.arraycopy(packet, 0, held, 0, packet.length);
+        reordered++;
+        return cut(packetSize);
+    }
+
+    private byte[] cut(int packetSize) {
+        if (!message.hasRemaining()) return null;
+        int length = Math.min(sizes.next(random, packetSize), message.remaining());
+        byte[] dst = packets.obtain(length, packetSize);
+        message.get(dst, 0, length);
+        return dst;
+    }
+
+    @Override
+    public void close() {
+        held = null;
+        message.position(message.limit());
+    }
+}
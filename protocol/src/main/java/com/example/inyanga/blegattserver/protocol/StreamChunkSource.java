@@ -0,0 +1,119 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Streams a protocol v2 message straight from an InputStream. Only a fixed read-ahead window is
+ * held in memory, so payloads far larger than the heap can be sent. With
+ * {@link MessageHeader#LENGTH_UNKNOWN} the message simply ends with the stream, which is how
+ * compressed dynamic data is sent.
+ */
+public class StreamChunkSource implements ChunkSource {
+
+    private final InputStream in;
+    private final PacketBuffer packets;
+    private final byte[] readAhead;
+    private int readPosition;
+    private int readLimit;
+    private final boolean untilEnd;
+    private long remaining;
+    private IOException error;
+
+    public StreamChunkSource(InputStream in, long dataLength, int readAheadSize, PacketBuffer packets) {
+        this(in, MessageHeader.VERSION_2, dataLength, readAheadSize, packets);
+    }
+
+    /**
+     * @param version protocol v2 version byte, optionally with codec bits
+     */
+    public StreamChunkSource(InputStream in, byte version, long dataLength, int readAheadSize,
+                             PacketBuffer packets) {
+        this.in = in;
+        this.packets = packets;
+        this.readAhead = new byte[Math.max(readAheadSize, MessageHeader.SIZE_V2)];
+        MessageHeader.write(readAhead, version, dataLength);
+        this.readLimit = MessageHeader.SIZE_V2;
+        this.untilEnd = dataLength == MessageHeader.LENGTH_UNKNOWN;
+        this.remaining = untilEnd ? Long.MAX_VALUE : dataLength + MessageHeader.SIZE_V2;
+    }
+
+    @Override
+    public boolean hasRemaining() {
+        return remaining > 0 && error == null;
+    }
+
+    @Override
+    public byte[] next(int packetSize) {
+        int length = (int) Math.min(packetSize, remaining);
+        if (length <= 0 || error != null) return null;
+
+        byte[] dst = packets.obtain(length, packetSize);
+        int filled = 0;
+        while (filled < length) {
+            if (readPosition == readLimit && !fill()) break;
+            int count = Math.min(length - filled, readLimit - readPosition);
+            System.arraycopy(readAhead, readPosition, dst, filled, count);
+            readPosition += count;
+            filled += count;
+        }
+        if (filled < length) {
+            // Only a stream of unknown length may end early, inside its last packet
+            if (error != null || filled == 0) return null;
+            return Arrays.copyOf(dst, filled);
+        }
+        remaining -= length;
+        if (remaining == 0) close();
+        return dst;
+    }
+
+    /**
+     * Discards the next count bytes of the message, e.g. to resume a transfer part way through.
+     */
+    public void skip(long count) {
+        while (count > 0 && hasRemaining()) {
+            if (readPosition == readLimit && !fill()) return;
+            int n = (int) Math.min(count, readLimit - readPosition);
+            readPosition += n;
+            remaining -= n;
+            count -= n;
+        }
+        if (remaining == 0) close();
+    }
+
+    /**
+     * Set when the stream failed or ended before the announced length was sent.
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    @Override
+    public void close() {
+        try {
+            in.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private boolean fill() {
+        try {
+            int nRead = in.read(readAhead, 0, readAhead.length);
+            if (nRead == -1 && untilEnd) {
+                remaining = 0;
+                close();
+                return false;
+            }
+            if (nRead == -1) throw new IOException("Stream ended " + remaining + " bytes early");
+            readPosition = 0;
+            readLimit = nRead;
+            return true;
+        } catch (IOException e) {
+            error = e;
+            close();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Spreads a framed message over several data characteristics. The message is split into
+ * stripeCount contiguous stripes of ceil(length / stripeCount) bytes (the last one may be
+ * shorter or empty), each read by its own cursor; packets are taken from the stripes in turn
+ * and sent on the characteristic with the stripe's index. A central reassembles by writing
+ * every stripe at stripeIndex * stripeLength, once the header in stripe 0 gives the length.
+ */
+public class StripedSource implements ChunkSource {
+
+    private final ChunkCursor[] cursors;
+    private int turn;
+    private int stripe;
+
+    public StripedSource(ByteBuffer message, int stripeCount, PacketBuffer packets) {
+        int start = message.position();
+        int length = message.remaining();
+        int stripeLength = stripeLength(length, stripeCount);
+        cursors = new ChunkCursor[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            ByteBuffer slice = message.duplicate();
+            int from = Math.min(start + i * stripeLength, start + length);
+            slice.limit(Math.min(from + stripeLength, start + length));
+            slice.position(from);
+            cursors[i] = new ChunkCursor(packets);
+            cursors[i].reset(slice);
+        }
+    }
+
+    public static int stripeLength(long messageLength, int stripeCount) {
+        return (int) ((messageLength + stripeCount - 1) / stripeCount);
+    }
+
+    /**
+     * @return stripe of the packet last returned by next()
+     */
+    public int getStripe() {
+        return stripe;
+    }
+
+    @Override
+    public boolean hasRemaining() {
+        for (ChunkCursor cursor : cursors) {
+            if (cursor.hasRemaining()) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public byte[] next(int packetSize) {
+        for (int i = 0; i < cursors.length; i++) {
+            int index = turn;
+            turn = (turn + 1) % cursors.length;
+            byte[] packet = cursors[index].next(packetSize);
+            if (packet != null) {
+                stripe = index;
+                return packet;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        for (ChunkCursor cursor : cursors) {
+            cursor.close();
+        }
+    }
+}
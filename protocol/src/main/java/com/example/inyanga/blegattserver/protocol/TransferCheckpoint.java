@@ -0,0 +1,65 @@
+package com.example.inyanga.blegattserver.protocol;
+
+/**
+ * Server-side progress of one identified transfer: how much of the framed message the stack has
+ * confirmed as sent. It outlives the connection so the central that started it can resume after
+ * reconnecting; transfer IDs are chosen by centrals and only unique per device address.
+ */
+public class TransferCheckpoint {
+
+    private final String address;
+    private final int transferId;
+    private final ResumableMessage message;
+    private long acknowledged;
+    private boolean complete;
+    private long touchedAt;
+
+    public TransferCheckpoint(String address, int transferId, ResumableMessage message, long now) {
+        this.address = address;
+        this.transferId = transferId;
+        this.message = message;
+        this.touchedAt = now;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public int getTransferId() {
+        return transferId;
+    }
+
+    public ResumableMessage getMessage() {
+        return message;
+    }
+
+    /**
+     * Offset in the framed message up to which every notification was confirmed.
+     */
+    public long getAcknowledged() {
+        return acknowledged;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public long getTouchedAt() {
+        return touchedAt;
+    }
+
+    void onAcknowledged(int bytes, long now) {
+        acknowledged += bytes;
+        touchedAt = now;
+    }
+
+    void rewind(long offset, long now) {
+        acknowledged = offset;
+        complete = false;
+        touchedAt = now;
+    }
+
+    void markComplete() {
+        complete = true;
+    }
+}
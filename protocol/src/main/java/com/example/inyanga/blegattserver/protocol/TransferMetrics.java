@@ -0,0 +1,268 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Performance counters for the GATT server, updated on the engine's event loop and readable from
+ * any thread.
+ * Latencies are recorded in microseconds, connection durations and reconnect gaps in
+ * milliseconds.
+ */
+public class TransferMetrics {
+
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong notifications = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong abortedTransfers = new AtomicLong();
+    private final AtomicLong compressedTransfers = new AtomicLong();
+    private final AtomicLong payloadBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong savedMillis = new AtomicLong();
+    private final AtomicLong resumes = new AtomicLong();
+    private final AtomicLong chunkRetransmits = new AtomicLong();
+    private final AtomicLong writesWithoutResponse = new AtomicLong();
+    private final AtomicLong resumedBytes = new AtomicLong();
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong recordFrames = new AtomicLong();
+    private final LatencyHistogram notificationLatency = new LatencyHistogram();
+    private final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+    private final LatencyHistogram connectionDuration = new LatencyHistogram();
+    private final LatencyHistogram reconnectGap = new LatencyHistogram();
+    private volatile long startNanos = System.nanoTime();
+
+    public void onBytesReceived(int count) {
+        bytesIn.addAndGet(count);
+    }
+
+    /**
+     * An inbound packet arrived as a write command, with no ATT response round trip.
+     */
+    public void onWriteWithoutResponse() {
+        writesWithoutResponse.incrementAndGet();
+    }
+
+    public void onRequest() {
+        requests.incrementAndGet();
+    }
+
+    /**
+     * A transfer ended before all of its data was sent.
+     */
+    public void onTransferAborted() {
+        abortedTransfers.incrementAndGet();
+    }
+
+    /**
+     * @param latencyNanos time from notifyCharacteristicChanged to onNotificationSent
+     */
+    public void onNotificationSent(int count, long latencyNanos, boolean success) {
+        notificationLatency.record(latencyNanos / 1000);
+        if (success) {
+            bytesOut.addAndGet(count);
+            notifications.incrementAndGet();
+        } else {
+            failures.incrementAndGet();
+        }
+    }
+
+    public void onNotificationRetry() {
+        retries.incrementAndGet();
+    }
+
+    public void onFirstByte(long latencyNanos) {
+        timeToFirstByte.record(latencyNanos / 1000);
+    }
+
+    /**
+     * @param savedMillis estimated airtime saved, negative if compression made things worse
+     */
+    public void onCompressedTransfer(long payloadLength, long sentLength, long savedMillis) {
+        compressedTransfers.incrementAndGet();
+        payloadBytes.addAndGet(payloadLength);
+        compressedBytes.addAndGet(sentLength);
+        this.savedMillis.addAndGet(savedMillis);
+    }
+
+    /**
+     * @param offset bytes of the message the central already had and did not get again
+     */
+    public void onResumed(long offset) {
+        resumes.incrementAndGet();
+        resumedBytes.addAndGet(offset);
+    }
+
+    /**
+     * Reliable-mode chunks queued to be sent again, after a failed notification or a NACK.
+     */
+    public void onChunkRetransmit(int count) {
+        chunkRetransmits.addAndGet(count);
+    }
+
+    /**
+     * A notification carrying count coalesced records was sent.
+     */
+    public void onRecordFrame(int count) {
+        records.addAndGet(count);
+        recordFrames.incrementAndGet();
+    }
+
+    public void onDisconnected(long connectedNanos) {
+        connectionDuration.record(connectedNanos / 1000000);
+    }
+
+    /**
+     * @param gapNanos time between a central's disconnect and its next connection
+     */
+    public void onReconnected(long gapNanos) {
+        reconnectGap.record(gapNanos / 1000000);
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    public long getNotifications() {
+        return notifications.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getAbortedTransfers() {
+        return abortedTransfers.get();
+    }
+
+    public long getCompressedTransfers() {
+        return compressedTransfers.get();
+    }
+
+    /**
+     * Sent bytes per payload byte over all compressed transfers, 1 if there were none.
+     */
+    public double getCompressionRatio() {
+        long payload = payloadBytes.get();
+        return (payload == 0) ? 1 : (double) compressedBytes.get() / payload;
+    }
+
+    public long getSavedMillis() {
+        return savedMillis.get();
+    }
+
+    public long getResumes() {
+        return resumes.get();
+    }
+
+    public long getResumedBytes() {
+        return resumedBytes.get();
+    }
+
+    public long getWritesWithoutResponse() {
+        return writesWithoutResponse.get();
+    }
+
+    public long getChunkRetransmits() {
+        return chunkRetransmits.get();
+    }
+
+    public long getRecords() {
+        return records.get();
+    }
+
+    public long getRecordFrames() {
+        return recordFrames.get();
+    }
+
+    /**
+     * Average inbound rate since the metrics were created or last reset.
+     */
+    public long getBytesPerSecondIn() {
+        return perSecond(bytesIn.get());
+    }
+
+    public long getBytesPerSecondOut() {
+        return perSecond(bytesOut.get());
+    }
+
+    public LatencyHistogram getNotificationLatency() {
+        return notificationLatency;
+    }
+
+    public LatencyHistogram getTimeToFirstByte() {
+        return timeToFirstByte;
+    }
+
+    public LatencyHistogram getConnectionDuration() {
+        return connectionDuration;
+    }
+
+    public LatencyHistogram getReconnectGap() {
+        return reconnectGap;
+    }
+
+    public void reset() {
+        bytesIn.set(0);
+        bytesOut.set(0);
+        notifications.set(0);
+        retries.set(0);
+        failures.set(0);
+        requests.set(0);
+        abortedTransfers.set(0);
+        compressedTransfers.set(0);
+        payloadBytes.set(0);
+        compressedBytes.set(0);
+        savedMillis.set(0);
+        resumes.set(0);
+        resumedBytes.set(0);
+        chunkRetransmits.set(0);
+        writesWithoutResponse.set(0);
+        records.set(0);
+        recordFrames.set(0);
+        notificationLatency.reset();
+        timeToFirstByte.reset();
+        connectionDuration.reset();
+        reconnectGap.reset();
+        startNanos = System.nanoTime();
+    }
+
+    public String report() {
+        return String.format(Locale.US,
+                "In: %d B (%d B/s, %d writes without response), out: %d B (%d B/s)%n"
+                        + "Notifications: %d, retries: %d, failures: %d%n"
+                        + "Notify latency us p50/p90/p99/max: %d/%d/%d/%d%n"
+                        + "First byte us p50/p99: %d/%d, requests: %d, aborted: %d%n"
+                        + "Compressed: %d transfers, ratio %.2f, saved ~%d ms%n"
+                        + "Reconnect ms p50/p99/max: %d/%d/%d, resumes: %d (%d B not resent)%n"
+                        + "Reliable chunks retransmitted: %d, records: %d in %d notifications",
+                getBytesIn(), getBytesPerSecondIn(), getWritesWithoutResponse(), getBytesOut(), getBytesPerSecondOut(),
+                getNotifications(), getRetries(), getFailures(),
+                notificationLatency.getPercentile(50), notificationLatency.getPercentile(90),
+                notificationLatency.getPercentile(99), notificationLatency.getMax(),
+                timeToFirstByte.getPercentile(50), timeToFirstByte.getPercentile(99), getRequests(),
+                getAbortedTransfers(),
+                getCompressedTransfers(), getCompressionRatio(), getSavedMillis(),
+                reconnectGap.getPercentile(50), reconnectGap.getPercentile(99), reconnectGap.getMax(),
+                getResumes(), getResumedBytes(), getChunkRetransmits(), getRecords(), getRecordFrames());
+    }
+
+    private long perSecond(long bytes) {
+        long elapsed = System.nanoTime() - startNanos;
+        return (elapsed <= 0) ? 0 : bytes * 1000000000L / elapsed;
+    }
+}
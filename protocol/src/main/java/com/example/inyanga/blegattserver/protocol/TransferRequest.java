@@ -0,0 +1,207 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Control commands for identified transfers, sent as messages whose version byte carries the
+ * {@link MessageHeader#CONTROL} bit; any other message is a plain request for data and is never
+ * mistaken for a command, whatever its first bytes are. A central picks a transfer ID and starts
+ * the transfer with START; after a disconnect it sends RESUME with the same ID and the number of
+ * bytes of the framed message it already holds, and receives the remaining bytes without a new
+ * header. START with the RELIABLE flag asks for reliable mode instead ({@link ReliableSource}),
+ * whose missing chunks are requested with NACK; a NACK with an empty bitmap confirms the whole
+ * message. READ asks for a byte range of a named resource, an asset or a file of the app, as an
+ * identified transfer that RESUME continues like one started with START. LOAD starts a seeded
+ * load test ({@link LoadGenerator}) with the profile the server is configured with.
+ * <pre>
+ * START:  'S' | transferId (4) [| flags (1)]
+ * RESUME: 'R' | transferId (4) | offset (4), offset 0xFFFFFFFF = the server's checkpoint
+ * NACK:   'N' | first sequence (2) | bitmap (0..n)
+ * READ:   'G' | transferId (4) | store (1) | offset (4) | length (4) | name (UTF-8, 1..n)
+ *         length 0xFFFFFFFF = to the end of the resource
+ * LOAD:   'L' | seed (8)
+ * </pre>
+ * Integers are big-endian.
+ */
+public class TransferRequest {
+
+    public static final byte START = 'S';
+    public static final byte RESUME = 'R';
+    public static final byte NACK = 'N';
+    public static final byte READ = 'G';
+    public static final byte LOAD = 'L';
+    public static final int STORE_ASSET = 0;
+    public static final int STORE_FILE = 1;
+    public static final long TO_END = -1;
+    public static final int FLAG_RELIABLE = 0x01;
+    public static final long FROM_CHECKPOINT = -1;
+
+    private static final int START_LENGTH = 5;
+    private static final int RESUME_LENGTH = 9;
+    private static final int NACK_HEADER_LENGTH = 3;
+    private static final int READ_HEADER_LENGTH = 14;
+    private static final int LOAD_LENGTH = 9;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final byte command;
+    private final int transferId;
+    private final long offset;
+    private int flags;
+    private byte[] bitmap;
+    private int store;
+    private long length;
+    private String name;
+
+    private TransferRequest(byte command, int transferId, long offset) {
+        this.command = command;
+        this.transferId = transferId;
+        this.offset = offset;
+    }
+
+    /**
+     * @param version version byte of the message that carried the payload
+     * @return the command, or null if the message is not a control message or the command is
+     * unknown or malformed
+     */
+    public static TransferRequest parse(byte version, ByteBuffer payload) {
+        if (!MessageHeader.isControl(version) || !payload.hasRemaining()) return null;
+        int start = payload.position();
+        TransferRequest request;
+        int length = payload.remaining();
+        switch (payload.get(start)) {
+            case START:
+                if (length != START_LENGTH && length != START_LENGTH + 1) return null;
+                request = new TransferRequest(START, payload.getInt(start + 1), 0);
+                if (length > START_LENGTH) request.flags = payload.get(start + START_LENGTH) & 0xFF;
+                return request;
+            case RESUME:
+                if (length != RESUME_LENGTH) return null;
+                long offset = payload.getInt(start + 5) & 0xFFFFFFFFL;
+                return new TransferRequest(RESUME, payload.getInt(start + 1),
+                        (offset == 0xFFFFFFFFL) ? FROM_CHECKPOINT : offset);
+            case NACK:
+                if (length < NACK_HEADER_LENGTH) return null;
+                request = new TransferRequest(NACK, -1, payload.getShort(start + 1) & 0xFFFF);
+                request.bitmap = copy(payload, start + NACK_HEADER_LENGTH);
+                return request;
+            case READ:
+                if (length <= READ_HEADER_LENGTH) return null;
+                request = new TransferRequest(READ, payload.getInt(start + 1),
+                        payload.getInt(start + 6) & 0xFFFFFFFFL);
+                request.store = payload.get(start + 5) & 0xFF;
+                long range = payload.getInt(start + 10) & 0xFFFFFFFFL;
+                request.length = (range == 0xFFFFFFFFL) ? TO_END : range;
+                request.name = new String(copy(payload, start + READ_HEADER_LENGTH), UTF_8);
+                return request;
+            case LOAD:
+                if (length != LOAD_LENGTH) return null;
+                return new TransferRequest(LOAD, -1, payload.getLong(start + 1));
+            default:
+                return null;
+        }
+    }
+
+    private static byte[] copy(ByteBuffer payload, int from) {
+        ByteBuffer tail = payload.duplicate();
+        tail.position(from);
+        byte[] bytes = new byte[tail.remaining()];
+        tail.get(bytes);
+        return bytes;
+    }
+
+    public static byte[] start(int transferId) {
+        return ByteBuffer.allocate(START_LENGTH).put(START).putInt(transferId).array();
+    }
+
+    public static byte[] start(int transferId, int flags) {
+        return ByteBuffer.allocate(START_LENGTH + 1).put(START).putInt(transferId)
+                .put((byte) flags).array();
+    }
+
+    public static byte[] nack(int firstSequence, byte[] bitmap) {
+        return ByteBuffer.allocate(NACK_HEADER_LENGTH + bitmap.length).put(NACK)
+                .putShort((short) firstSequence).put(bitmap).array();
+    }
+
+    public static byte[] resume(int transferId, long offset) {
+        return ByteBuffer.allocate(RESUME_LENGTH).put(RESUME).putInt(transferId)
+                .putInt((int) offset).array();
+    }
+
+    public static byte[] read(int transferId, int store, String name, long offset, long length) {
+        byte[] encoded = name.getBytes(UTF_8);
+        return ByteBuffer.allocate(READ_HEADER_LENGTH + encoded.length).put(READ).putInt(transferId)
+                .put((byte) store).putInt((int) offset).putInt((int) length).put(encoded).array();
+    }
+
+    public static byte[] load(long seed) {
+        return ByteBuffer.allocate(LOAD_LENGTH).put(LOAD).putLong(seed).array();
+    }
+
+    public byte getCommand() {
+        return command;
+    }
+
+    public int getTransferId() {
+        return transferId;
+    }
+
+    public boolean isReliable() {
+        return (flags & FLAG_RELIABLE) != 0;
+    }
+
+    /**
+     * @return first sequence number of a NACK bitmap
+     */
+    public int getFirstSequence() {
+        return (int) offset;
+    }
+
+    public byte[] getBitmap() {
+        return bitmap;
+    }
+
+    /**
+     * @return seed of a LOAD
+     */
+    public long getSeed() {
+        return offset;
+    }
+
+    /**
+     * @return STORE_ASSET or STORE_FILE, where a READ looks for its resource
+     */
+    public int getStore() {
+        return store;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return length of a READ range, or TO_END
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Clips a READ range to a resource of size bytes.
+     *
+     * @return number of bytes to send, or -1 if the range starts past the end
+     */
+    public long getRangeLength(long size) {
+        if (offset > size) return -1;
+        return (length == TO_END) ? size - offset : Math.min(length, size - offset);
+    }
+
+    /**
+     * @return offset in the framed message to resume from, or FROM_CHECKPOINT; for READ, the
+     * start of the range in the resource
+     */
+    public long getOffset() {
+        return offset;
+    }
+}
@@ -0,0 +1,309 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Transfer state of one connected central: the inbound request being reassembled, the outbound
+ * cursor, the negotiated MTU and the byte counters. Sessions are keyed by device address so
+ * several centrals can be served side by side without sharing state.
+ */
+public class TransferSession {
+
+    public static final int DEFAULT_MTU = 23;
+    private static final int ATT_HEADER_SIZE = 3;
+
+    private final String address;
+    private final InboundAssembler inbound;
+    private final PacketBuffer packets = new PacketBuffer();
+    private final ChunkCursor cursor = new ChunkCursor(packets);
+    private final RecordCoalescer records = new RecordCoalescer(packets);
+    private final NotificationWindow window;
+    private ChunkSource source;
+    private byte[] retryPacket;
+    private int packetStripe;
+    private int inFlight;
+    private int staleInFlight;
+    private boolean lastConfirmedStale;
+    private long[] sendTimes = new long[8];
+    private int[] sendSizes = new int[8];
+    private int sendHead;
+    private final long connectedAt = System.nanoTime();
+    private long requestTime = -1;
+    private int lastConfirmedSize;
+    private long transferStart;
+    private int mtu = DEFAULT_MTU;
+    private int weight = 1;
+
+    private int sentBytes;
+    private long payloadLength = -1;
+    private TransferCheckpoint checkpoint;
+    private ReliableSource reliable;
+
+    public TransferSession(String address, InboundAssembler inbound) {
+        this(address, inbound, new NotificationWindow(NotificationWindow.DEFAULT_INITIAL_SIZE,
+                NotificationWindow.DEFAULT_MAX_SIZE));
+    }
+
+    public TransferSession(String address, InboundAssembler inbound, NotificationWindow window) {
+        this.address = address;
+        this.inbound = inbound;
+        this.window = window;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public InboundAssembler getInbound() {
+        return inbound;
+    }
+
+    public PacketBuffer getPacketBuffer() {
+        return packets;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    public void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    public int getPacketSize() {
+        return mtu - ATT_HEADER_SIZE;
+    }
+
+    /**
+     * Number of packets this session may send in a row before the scheduler moves on to the
+     * next session.
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    public void setWeight(int weight) {
+        this.weight = Math.max(1, weight);
+    }
+
+    /**
+     * Notifications this central may have outstanding; tune it with resize() for handsets whose
+     * stack queues fewer or more of them.
+     */
+    public NotificationWindow getNotificationWindow() {
+        return window;
+    }
+
+    public void startSending(ByteBuffer message) {
+        cursor.reset(message);
+        startSending(cursor);
+    }
+
+    /**
+     * Replaces the transfer in progress, if any. Its notifications that are still in flight are
+     * confirmed first, as they were handed to the stack first, and are not credited to the new
+     * transfer.
+     */
+    public void startSending(ChunkSource source) {
+        // startSending(ByteBuffer) reloads the cursor that may already be the source
+        if (this.source != null && this.source != source) this.source.close();
+        this.source = source;
+        checkpoint = null;
+        retryPacket = null;
+        staleInFlight = inFlight;
+        sentBytes = 0;
+        transferStart = System.nanoTime();
+    }
+
+    /**
+     * Uncompressed length of the payload about to be sent, set before a compressed transfer
+     * starts so its ratio can be reported. Cleared when the transfer finishes.
+     */
+    public void setPayloadLength(long payloadLength) {
+        this.payloadLength = payloadLength;
+    }
+
+    public long getPayloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * Checkpoint of the identified transfer in progress, or null for a plain transfer.
+     */
+    public TransferCheckpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    void setCheckpoint(TransferCheckpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Message of the last reliable transfer, retained for retransmission until the central
+     * confirms it, another reliable transfer starts or the session ends.
+     */
+    public ReliableSource getReliable() {
+        return reliable;
+    }
+
+    void setReliable(ReliableSource reliable) {
+        this.reliable = reliable;
+    }
+
+    /**
+     * Small records waiting to be coalesced into notifications; configure() it to tune the
+     * flush threshold and delay of this session.
+     */
+    public RecordCoalescer getRecords() {
+        return records;
+    }
+
+    public ChunkSource getSource() {
+        return source;
+    }
+
+    public boolean isSending() {
+        return source != null;
+    }
+
+    public boolean hasPendingData() {
+        return source != null && (retryPacket != null || source.hasRemaining());
+    }
+
+    public byte[] nextPacket(int packetSize) {
+        if (source == null) return null;
+        byte[] packet = retryPacket;
+        retryPacket = null;
+        if (packet == null) {
+            packet = source.next(packetSize);
+            packetStripe = (source instanceof StripedSource) ? ((StripedSource) source).getStripe() : 0;
+        }
+        if (packet != null) {
+            sentBytes += packet.length;
+            pushSendTime(packet.length);
+        }
+        return packet;
+    }
+
+    /**
+     * @return data characteristic stripe of the packet last returned by nextPacket()
+     */
+    public int getPacketStripe() {
+        return packetStripe;
+    }
+
+    /**
+     * Puts back the packet last returned by nextPacket() after the stack refused to send it.
+     * The packet array stays valid because no other packet has been taken since.
+     */
+    public void requeue(byte[] packet) {
+        retryPacket = packet;
+        sentBytes -= packet.length;
+        inFlight--;
+    }
+
+    /**
+     * Confirms the oldest packet in flight.
+     *
+     * @return nanoseconds since that packet was taken by nextPacket(), or -1 if none was in flight
+     */
+    public long onPacketSent(long now) {
+        if (inFlight == 0) return -1;
+        int index = sendHead;
+        sendHead = (sendHead + 1) % sendTimes.length;
+        inFlight--;
+        lastConfirmedStale = staleInFlight > 0;
+        if (lastConfirmedStale) staleInFlight--;
+        lastConfirmedSize = sendSizes[index];
+        return now - sendTimes[index];
+    }
+
+    /**
+     * @return notifications handed to the stack and not yet confirmed, including those of a
+     * transfer that was replaced
+     */
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return true if the packet confirmed by the last onPacketSent() call belonged to a transfer
+     * that was replaced since
+     */
+    public boolean isLastConfirmedStale() {
+        return lastConfirmedStale;
+    }
+
+    /**
+     * Size of the packet confirmed by the last onPacketSent() call.
+     */
+    public int getLastConfirmedSize() {
+        return lastConfirmedSize;
+    }
+
+    public long getTransferTime(long now) {
+        return now - transferStart;
+    }
+
+    public long getConnectedTime(long now) {
+        return now - connectedAt;
+    }
+
+    public void markRequest(long now) {
+        requestTime = now;
+    }
+
+    /**
+     * @return time from the last request to its first confirmed notification, or -1 if it has
+     * already been reported
+     */
+    public long takeFirstByteLatency(long now) {
+        if (requestTime < 0) return -1;
+        long latency = now - requestTime;
+        requestTime = -1;
+        return latency;
+    }
+
+    private void pushSendTime(int size) {
+        if (inFlight == sendTimes.length) {
+            long[] times = new long[inFlight * 2];
+            int[] sizes = new int[inFlight * 2];
+            for (int i = 0; i < inFlight; i++) {
+                times[i] = sendTimes[(sendHead + i) % inFlight];
+                sizes[i] = sendSizes[(sendHead + i) % inFlight];
+            }
+            sendTimes = times;
+            sendSizes = sizes;
+            sendHead = 0;
+        }
+        int index = (sendHead + inFlight) % sendTimes.length;
+        sendTimes[index] = System.nanoTime();
+        sendSizes[index] = size;
+        inFlight++;
+    }
+
+    /**
+     * @return true once every packet of the current transfer has been handed over and confirmed
+     */
+    public boolean isTransferDone() {
+        if (source instanceof OutboundStream && !((OutboundStream) source).isComplete()) return false;
+        return source != null && !hasPendingData() && inFlight == 0;
+    }
+
+    public int getSentBytes() {
+        return sentBytes;
+    }
+
+    /**
+     * Ends the current transfer. Notifications of it that are still in flight, e.g. after it was
+     * aborted, stay counted as stale so their confirmations are not credited to the next transfer.
+     */
+    public void finishSending() {
+        if (source != null) source.close();
+        source = null;
+        retryPacket = null;
+        payloadLength = -1;
+        checkpoint = null;
+        staleInFlight = inFlight;
+    }
+}
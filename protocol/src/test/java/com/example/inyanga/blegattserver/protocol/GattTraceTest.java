@@ -0,0 +1,99 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Recording, wrap-around and offline analysis of GATT event traces.
+ */
+public class GattTraceTest {
+
+    private static final String ADDRESS = "0A:1B:2C:3D:4E:5F";
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("gatt", ".trace");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void readsBackRecords() throws IOException {
+        GattTrace trace = new GattTrace(file, 16);
+        trace.record(GattTrace.MTU_CHANGED, ADDRESS, 0, 185, 0, 0);
+        trace.record(GattTrace.WRITE_REQUEST, ADDRESS, 2, 7, 20, 1L << 40);
+        trace.close();
+
+        List<GattTrace.Record> records = GattTrace.read(file);
+        assertEquals(2, records.size());
+        GattTrace.Record write = records.get(1);
+        assertEquals(GattTrace.WRITE_REQUEST, write.type);
+        assertEquals(ADDRESS, write.address);
+        assertEquals(2, write.status);
+        assertEquals(7, write.arg0);
+        assertEquals(20, write.arg1);
+        assertEquals(1L << 40, write.arg2);
+        assertTrue(write.nanos >= records.get(0).nanos);
+    }
+
+    @Test
+    public void keepsNewestRecordsAfterWrapping() throws IOException {
+        GattTrace trace = new GattTrace(file, 8);
+        for (int i = 0; i < 20; i++) {
+            trace.record(GattTrace.NOTIFY, ADDRESS, 1, i, 0, 0);
+        }
+        trace.close();
+
+        List<GattTrace.Record> records = GattTrace.read(file);
+        assertEquals(8, records.size());
+        for (int i = 0; i < 8; i++) {
+            assertEquals(12 + i, records.get(i).arg0);
+        }
+    }
+
+    @Test
+    public void findsTransfersAndStalls() throws Exception {
+        GattTrace trace = new GattTrace(file, 256);
+        trace.record(GattTrace.TRANSFER_START, ADDRESS, 0, 182, 0, 0);
+        for (int i = 0; i < 10; i++) {
+            trace.record(GattTrace.NOTIFY, ADDRESS, 1, 182, 0, 0);
+            if (i == 5) Thread.sleep(30);
+            trace.record(GattTrace.NOTIFICATION_SENT, ADDRESS, 0);
+        }
+        trace.record(GattTrace.NOTIFY, ADDRESS, 0, 182, 0, 0);
+        trace.record(GattTrace.TRANSFER_END, ADDRESS, 0, 1820, 0, 0);
+        trace.record(GattTrace.TRANSFER_START, ADDRESS, 0, 182, 0, 0);
+        trace.record(GattTrace.DISCONNECTED, ADDRESS, 0);
+        trace.close();
+
+        GattTraceAnalyzer analyzer = new GattTraceAnalyzer(GattTrace.read(file), 20);
+        List<GattTraceAnalyzer.Transfer> transfers = analyzer.getTransfers();
+        assertEquals(2, transfers.size());
+        GattTraceAnalyzer.Transfer first = transfers.get(0);
+        assertTrue(first.isComplete());
+        assertEquals(10, first.notifications);
+        assertEquals(1, first.rejected);
+        assertEquals(1820, first.bytes);
+        assertEquals(1, first.stalls);
+        assertFalse(transfers.get(1).isComplete());
+        assertEquals(1, analyzer.getStalls().size());
+        assertEquals(9, analyzer.getNotificationGaps().getCount());
+        String report = analyzer.report();
+        assertTrue(report.startsWith("Transfers: 2"));
+        assertTrue(report.contains("1820 B in 10 notifications of <= 182 B (1 rejected, 0 failed)"));
+        assertTrue(report.contains(": incomplete, 0 B in 0 notifications"));
+        assertTrue(report.contains("Stalls of 20 ms or more: 1"));
+    }
+}
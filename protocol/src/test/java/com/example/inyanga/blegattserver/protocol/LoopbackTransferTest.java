@@ -0,0 +1,829 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * End-to-end transfers between a ProtocolEngine and simulated centrals over the loopback link.
+ */
+public class LoopbackTransferTest {
+
+    private static final long TIMEOUT = 10000;
+
+    private final byte[] payload = new byte[15000];
+    private final AtomicInteger rejectedResumes = new AtomicInteger();
+    private LoopbackTransport transport;
+    private ProtocolEngine engine;
+    private File file;
+
+    @Before
+    public void setUp() {
+        new Random(1).nextBytes(payload);
+    }
+
+    @After
+    public void tearDown() {
+        if (transport != null) transport.close();
+        if (file != null) file.delete();
+    }
+
+    private void start(int mtu, int packetsPerEvent, double lossRate) {
+        transport = new LoopbackTransport(mtu, 7500, packetsPerEvent, 8, lossRate, 1);
+        final PayloadCache cache = new PayloadCache(new PayloadCache.Loader() {
+            @Override
+            public InputStream open(String name) {
+                return new ByteArrayInputStream(payload);
+            }
+        }, 64 * 1024);
+        engine = new ProtocolEngine(transport, new SilentLog(), new MessageHandler() {
+            @Override
+            public void onMessage(TransferSession session, byte version, ByteBuffer payload) {
+                TransferRequest request = TransferRequest.parse(version, payload);
+                try {
+                    if (request == null)
+                        engine.send(session, cache.get("payload", MessageHeader.VERSION_1));
+                    else if (request.getCommand() == TransferRequest.READ)
+                        engine.send(session, request.getTransferId(), mapRange(request, version));
+                    else if (request.getCommand() == TransferRequest.START && request.isReliable())
+                        engine.sendReliable(session, cache.get("payload", MessageHeader.VERSION_1));
+                    else if (request.getCommand() == TransferRequest.START)
+                        engine.send(session, request.getTransferId(),
+                                new BufferedMessage(cache.get("payload", MessageHeader.VERSION_1)));
+                    else if (!engine.resume(session, request.getTransferId(), request.getOffset()))
+                        rejectedResumes.incrementAndGet();
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        transport.attach(engine);
+    }
+
+    @Test
+    public void transfersWholePayload() throws Exception {
+        start(185, 4, 0);
+        LoopbackCentral central = connect("00:00:00:00:00:01");
+
+        central.request(MessageHeader.VERSION_1, new byte[]{1, 2, 3});
+
+        assertArrayEquals(payload, central.awaitMessage(TIMEOUT));
+        assertEquals(0, central.getFailedResponses());
+        assertSentOnce(central);
+        // 15003 framed bytes in 182-byte notifications
+        assertEquals(83, settledMetrics().getNotifications());
+    }
+
+    @Test
+    public void replacesTransferInProgress() throws Exception {
+        start(185, 4, 0);
+        final LoopbackCentral central = connect("00:00:00:00:00:01");
+        // Zero bytes have no valid version, so the central skips what is left of this message
+        final byte[] filler = new byte[MessageHeader.SIZE_V1 + payload.length];
+        MessageHeader.write(filler, MessageHeader.VERSION_1, payload.length);
+        transport.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                engine.send(engine.getSession(central.getAddress()), ByteBuffer.wrap(filler));
+            }
+        }, 50);
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (central.getReceivedLength() < 1000 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        central.request(MessageHeader.VERSION_1, new byte[0]);
+
+        assertArrayEquals(payload, central.awaitMessage(TIMEOUT));
+        central.request(MessageHeader.VERSION_1, new byte[0]);
+        assertArrayEquals(payload, central.awaitMessage(TIMEOUT));
+    }
+
+    @Test
+    public void survivesLinkLayerLoss() throws Exception {
+        start(23, 6, 0.2);
+        LoopbackCentral central = connect("00:00:00:00:00:01");
+
+        central.request(MessageHeader.VERSION_1, new byte[0]);
+
+        assertArrayEquals(payload, central.awaitMessage(TIMEOUT));
+        assertSentOnce(central);
+    }
+
+    @Test
+    public void servesSeveralCentrals() throws Exception {
+        start(247, 6, 0);
+        LoopbackCentral first = connect("00:00:00:00:00:01");
+        LoopbackCentral second = connect("00:00:00:00:00:02");
+
+        first.request(MessageHeader.VERSION_1, new byte[]{1});
+        second.request(MessageHeader.VERSION_1, new byte[]{2});
+
+        assertArrayEquals(payload, first.awaitMessage(TIMEOUT));
+        assertArrayEquals(payload, second.awaitMessage(TIMEOUT));
+        assertEquals(2, engine.getMetrics().getRequests());
+    }
+
+    @Test
+    public void keepsWindowPerCentral() throws Exception {
+        start(185, 6, 0);
+        final LoopbackCentral first = connect("00:00:00:00:00:01");
+        LoopbackCentral second = connect("00:00:00:00:00:02");
+        transport.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                engine.getSession(first.getAddress()).getNotificationWindow().resize(1, 1);
+            }
+        }, 50);
+        Thread.sleep(100);
+
+        first.request(MessageHeader.VERSION_1, new byte[]{1});
+        second.request(MessageHeader.VERSION_1, new byte[]{2});
+
+        assertArrayEquals(payload, first.awaitMessage(TIMEOUT));
+        assertArrayEquals(payload, second.awaitMessage(TIMEOUT));
+        assertEquals(1, windowSize(first));
+        assertTrue(windowSize(second) > 1);
+    }
+
+    @Test
+    public void uploadsWithoutWriteResponses() throws Exception {
+        start(185, 6, 0);
+        transport.setWriteWithoutResponse(true);
+        LoopbackCentral central = connect("00:00:00:00:00:01");
+
+        central.request(MessageHeader.VERSION_1, new byte[4000]);
+
+        assertArrayEquals(payload, central.awaitMessage(TIMEOUT));
+        int packets = (MessageHeader.SIZE_V1 + 4000 + 181) / 182;
+        assertEquals(packets, engine.getMetrics().getWritesWithoutResponse());
+        assertEquals(0, central.getFailedResponses());
+    }
+
+    @Test
+    public void stripesAcrossCharacteristics() throws Exception {
+        start(185, 6, 0.1);
+        engine.setStripeCount(3);
+        LoopbackCentral central = connect("00:00:00:00:00:01");
+        central.setStripeCount(3);
+
+        central.request(MessageHeader.VERSION_1, new byte[0]);
+
+        assertArrayEquals(payload, central.awaitMessage(TIMEOUT));
+        assertSentOnce(central);
+    }
+
+    @Test
+    public void resumesAfterDisconnect() throws Exception {
+        start(23, 2, 0);
+        LoopbackCentral central = connect("00:00:00:00:00:01");
+
+        central.request(MessageHeader.control(MessageHeader.VERSION_1), TransferRequest.start(42));
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (central.getReceivedLength() < payload.length / 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        transport.disconnect(central.getAddress());
+        // Let a connection event that was already running finish delivering
+        Thread.sleep(50);
+        long received = central.getReceivedLength();
+        assertTrue(received > 0 && received < payload.length);
+
+        transport.connect(central);
+        central.resume(MessageHeader.control(MessageHeader.VERSION_1), TransferRequest.resume(42, received));
+
+        assertArrayEquals(payload, central.awaitMessage(TIMEOUT));
+        assertEquals(0, rejectedResumes.get());
+        assertEquals(1, engine.getMetrics().getResumes());
+        assertEquals(received, engine.getMetrics().getResumedBytes());
+    }
+
+    @Test
+    public void resumesOnlyOwnTransfers() throws Exception {
+        start(23, 2, 0);
+        LoopbackCentral owner = connect("00:00:00:00:00:01");
+        LoopbackCentral other = connect("00:00:00:00:00:02");
+
+        owner.request(MessageHeader.control(MessageHeader.VERSION_1), TransferRequest.start(42));
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (owner.getReceivedLength() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        other.resume(MessageHeader.control(MessageHeader.VERSION_1),
+                TransferRequest.resume(42, TransferRequest.FROM_CHECKPOINT));
+        while (rejectedResumes.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        assertEquals(1, rejectedResumes.get());
+        assertArrayEquals(payload, owner.awaitMessage(TIMEOUT));
+        assertEquals(0, other.getReceivedLength());
+        assertEquals(0, settledMetrics().getResumes());
+    }
+
+    @Test
+    public void readsRangeOfFile() throws Exception {
+        start(185, 6, 0);
+        file = File.createTempFile("range", ".bin");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(payload);
+        out.close();
+        LoopbackCentral central = connect("00:00:00:00:00:01");
+
+        central.request(MessageHeader.control(MessageHeader.VERSION_1),
+                TransferRequest.read(7, TransferRequest.STORE_FILE, file.getPath(), 1000, 4000));
+        assertArrayEquals(Arrays.copyOfRange(payload, 1000, 5000), central.awaitMessage(TIMEOUT));
+
+        central.request(MessageHeader.control(MessageHeader.VERSION_2), TransferRequest.read(8,
+                TransferRequest.STORE_FILE, file.getPath(), 14000, TransferRequest.TO_END));
+        assertArrayEquals(Arrays.copyOfRange(payload, 14000, payload.length), central.awaitMessage(TIMEOUT));
+    }
+
+    @Test
+    public void tellsCommandsFromData() throws Exception {
+        start(185, 4, 0);
+        LoopbackCentral central = connect("00:00:00:00:00:01");
+
+        central.request(MessageHeader.control(MessageHeader.VERSION_1), new byte[] {TransferRequest.START});
+        central.request(MessageHeader.VERSION_1, TransferRequest.nack(0, new byte[0]));
+
+        assertArrayEquals(payload, central.awaitMessage(TIMEOUT));
+        assertEquals(1, settledMetrics().getRequests());
+    }
+
+    @Test
+    public void retransmitsNackedChunks() throws Exception {
+        start(185, 4, 0);
+        ReliableCentral central = new ReliableCentral("00:00:00:00:00:01", transport, 5, 17, 40);
+        transport.connect(central);
+
+        central.request(MessageHeader.control(MessageHeader.VERSION_1),
+                TransferRequest.start(1, TransferRequest.FLAG_RELIABLE));
+
+        assertArrayEquals(payload, central.awaitPayload(TIMEOUT));
+        assertEquals(1, central.getNacks());
+        assertEquals(3, settledMetrics().getChunkRetransmits());
+        // The confirming NACK releases the message
+        Callable<ReliableSource> retained = new Callable<ReliableSource>() {
+            @Override
+            public ReliableSource call() {
+                return engine.getSession("00:00:00:00:00:01").getReliable();
+            }
+        };
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (onLoop(retained) != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertNull(onLoop(retained));
+    }
+
+    @Test
+    public void abortsReliableTransferWhenMtuDrops() throws Exception {
+        start(185, 1, 0);
+        final ReliableCentral central = new ReliableCentral("00:00:00:00:00:01", transport);
+        transport.connect(central);
+
+        central.request(MessageHeader.control(MessageHeader.VERSION_1),
+                TransferRequest.start(1, TransferRequest.FLAG_RELIABLE));
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (central.getChunks() < 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        boolean sending = onLoop(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                engine.onMtuChanged(central.getAddress(), 100);
+                return engine.getSession(central.getAddress()).isSending();
+            }
+        });
+
+        assertFalse(sending);
+        assertEquals(1, settledMetrics().getAbortedTransfers());
+        assertNull(central.awaitPayload(200));
+    }
+
+    @Test
+    public void coalescesRecords() throws Exception {
+        start(185, 6, 0);
+        final LoopbackCentral central = connect("00:00:00:00:00:01");
+        final int count = 100;
+        transport.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                TransferSession session = engine.getSession(central.getAddress());
+                for (int i = 0; i < count; i++) {
+                    engine.sendRecord(session, new byte[]{(byte) i, 1, 2, 3, 4, 5, 6, 7, 8, 9});
+                }
+            }
+        }, 50);
+
+        List<byte[]> records = central.awaitRecords(count, TIMEOUT);
+        assertNotNull(records);
+        for (int i = 0; i < count; i++) {
+            assertEquals((byte) i, records.get(i)[0]);
+        }
+        // 16 records of 11 bytes fill a 182-byte frame; the last 4 go out at the deadline
+        assertEquals(7, central.getRecordFrames());
+        assertEquals(count, engine.getMetrics().getRecords());
+    }
+
+    @Test
+    public void dropsRecordLargerThanFrame() throws Exception {
+        start(23, 4, 0);
+        final LoopbackCentral central = connect("00:00:00:00:00:01");
+        final byte[] fitting = new byte[18];
+        Arrays.fill(fitting, (byte) 7);
+
+        boolean[] queued = onLoop(new Callable<boolean[]>() {
+            @Override
+            public boolean[] call() {
+                TransferSession session = engine.getSession(central.getAddress());
+                return new boolean[]{engine.sendRecord(session, new byte[fitting.length + 1]),
+                        engine.sendRecord(session, fitting)};
+            }
+        });
+
+        assertFalse(queued[0]);
+        assertTrue(queued[1]);
+        List<byte[]> records = central.awaitRecords(1, TIMEOUT);
+        assertNotNull(records);
+        assertArrayEquals(fitting, records.get(0));
+        assertEquals(1, settledMetrics().getRecords());
+    }
+
+    @Test
+    public void dropsQueuedRecordsWhenMtuDrops() throws Exception {
+        start(185, 6, 0);
+        final LoopbackCentral central = connect("00:00:00:00:00:01");
+        final byte[] fitting = new byte[18];
+        Arrays.fill(fitting, (byte) 7);
+
+        onLoop(new Callable<Void>() {
+            @Override
+            public Void call() {
+                TransferSession session = engine.getSession(central.getAddress());
+                session.getRecords().configure(1000, 200);
+                engine.sendRecord(session, new byte[100]);
+                engine.sendRecord(session, fitting);
+                engine.onMtuChanged(central.getAddress(), 23);
+                return null;
+            }
+        });
+
+        // The record queued ahead of it no longer fits and must not hold the fitting one back
+        List<byte[]> records = central.awaitRecords(1, TIMEOUT);
+        assertNotNull(records);
+        assertArrayEquals(fitting, records.get(0));
+        assertEquals(1, settledMetrics().getRecords());
+        assertEquals(1, central.getRecordFrames());
+    }
+
+    @Test
+    public void flushesRecordsAtThreshold() throws Exception {
+        start(185, 6, 0);
+        final LoopbackCentral central = connect("00:00:00:00:00:01");
+        transport.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                TransferSession session = engine.getSession(central.getAddress());
+                session.getRecords().configure(1, 1000);
+                engine.sendRecord(session, new byte[]{1});
+            }
+        }, 50);
+
+        // Far sooner than the one second delay, since one byte reaches the threshold
+        assertNotNull(central.awaitRecords(1, 500));
+        assertEquals(1, central.getRecordFrames());
+    }
+
+    @Test
+    public void throttlesBlockingProducer() throws Exception {
+        start(185, 4, 0);
+        final LoopbackCentral central = connect("00:00:00:00:00:01");
+        final OutboundStream stream = new OutboundStream(payload.length, 1024);
+        transport.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                engine.send(engine.getSession(central.getAddress()), stream);
+            }
+        }, 50);
+
+        for (int offset = 0; offset < payload.length; offset += 700) {
+            stream.write(payload, offset, Math.min(700, payload.length - offset));
+            assertTrue(stream.getFreeSpace() >= 0);
+        }
+        assertArrayEquals(payload, central.awaitMessage(TIMEOUT));
+    }
+
+    @Test
+    public void pullsFromPublisherOnDemand() throws Exception {
+        start(185, 4, 0);
+        final LoopbackCentral central = connect("00:00:00:00:00:01");
+        final OutboundStream stream = new OutboundStream(payload.length, 512);
+        final AtomicInteger produced = new AtomicInteger();
+        final AtomicInteger demands = new AtomicInteger();
+        stream.setDemandListener(new OutboundStream.DemandListener() {
+            @Override
+            public void onDemand(OutboundStream stream, int freeBytes) {
+                produced.addAndGet(stream.offer(payload, produced.get(), freeBytes));
+                demands.incrementAndGet();
+            }
+        });
+        transport.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                engine.send(engine.getSession(central.getAddress()), stream);
+            }
+        }, 50);
+
+        assertArrayEquals(payload, central.awaitMessage(TIMEOUT));
+        assertEquals(payload.length, produced.get());
+        // A 512-byte buffer needs many rounds of demand for 15000 bytes
+        assertTrue(demands.get() >= payload.length / 512);
+    }
+
+    @Test
+    public void abortsStreamEndedEarly() throws Exception {
+        start(185, 4, 0);
+        final LoopbackCentral central = connect("00:00:00:00:00:01");
+        final OutboundStream stream = new OutboundStream(payload.length, 1024);
+        Callable<Boolean> sending = new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return engine.getSession(central.getAddress()).isSending();
+            }
+        };
+        onLoop(new Callable<Void>() {
+            @Override
+            public Void call() {
+                engine.send(engine.getSession(central.getAddress()), stream);
+                return null;
+            }
+        });
+        assertTrue(onLoop(sending));
+
+        stream.write(payload, 0, 3000);
+        stream.abort();
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (onLoop(sending) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        assertFalse(onLoop(sending));
+        assertEquals(1, settledMetrics().getAbortedTransfers());
+        assertNull(central.awaitMessage(200));
+        try {
+            stream.write(payload, 3000, 1);
+            fail("write after abort()");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void keepsAbortedNotificationsStale() throws Exception {
+        start(185, 4, 0);
+        final LoopbackCentral central = connect("00:00:00:00:00:01");
+        final OutboundStream aborted = new OutboundStream(payload.length, 1024);
+        aborted.abort();
+        int[] inFlight = onLoop(new Callable<int[]>() {
+            @Override
+            public int[] call() {
+                TransferSession session = engine.getSession(central.getAddress());
+                engine.send(session, ByteBuffer.wrap(payload));
+                int sent = session.getInFlight();
+                engine.send(session, aborted);
+                return new int[]{sent, session.getInFlight()};
+            }
+        });
+
+        // Confirmations of the aborted transfer must still find their notifications in flight
+        assertTrue(inFlight[0] > 0);
+        assertEquals(inFlight[0], inFlight[1]);
+        Callable<Integer> settled = new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return engine.getSession(central.getAddress()).getInFlight();
+            }
+        };
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (onLoop(settled) > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, (int) onLoop(settled));
+        assertEquals(1, settledMetrics().getAbortedTransfers());
+    }
+
+    @Test
+    public void failsWritesAfterDisconnect() throws Exception {
+        start(185, 4, 0);
+        final LoopbackCentral central = connect("00:00:00:00:00:01");
+        final OutboundStream stream = new OutboundStream(payload.length, 1024);
+        onLoop(new Callable<Void>() {
+            @Override
+            public Void call() {
+                engine.send(engine.getSession(central.getAddress()), stream);
+                return null;
+            }
+        });
+        stream.write(payload, 0, 3000);
+
+        transport.disconnect(central.getAddress());
+        try {
+            stream.write(payload, 3000, payload.length - 3000);
+            fail("write after disconnect");
+        } catch (IOException expected) {
+        }
+        assertTrue(stream.isAborted());
+    }
+
+    @Test
+    public void resetEndsSessions() throws Exception {
+        start(185, 4, 0);
+        final LoopbackCentral first = connect("00:00:00:00:00:01");
+        connect("00:00:00:00:00:02");
+        final OutboundStream stream = new OutboundStream(payload.length, 1024);
+        int sessions = onLoop(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                engine.send(engine.getSession(first.getAddress()), stream);
+                engine.reset();
+                return engine.getSessionCount();
+            }
+        });
+
+        assertEquals(0, sessions);
+        assertTrue(stream.isAborted());
+    }
+
+    @Test
+    public void runsSeededLoad() throws Exception {
+        start(185, 6, 0);
+        final LoopbackCentral central = connect("00:00:00:00:00:01");
+        final LoadProfile profile = new LoadProfile();
+        profile.setChunkSizes(ChunkSizeDistribution.mtuEdge());
+        profile.setPayloadSize(3000, 3000);
+        profile.setMessageCount(5);
+        final AtomicReference<LoadGenerator> load = new AtomicReference<>();
+        transport.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                load.set(engine.startLoad(engine.getSession(central.getAddress()), profile, 42));
+            }
+        }, 50);
+
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while ((load.get() == null || !load.get().isFinished()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertArrayEquals(LoadGenerator.payload(42, 4, 3000), central.awaitMessage(TIMEOUT));
+        assertEquals(5, central.getMessageCount());
+        assertEquals(5, load.get().getMessages());
+        assertEquals(0, settledMetrics().getFailures());
+    }
+
+    @Test
+    public void ignoresRequestsDuringLoad() throws Exception {
+        start(185, 6, 0);
+        final LoopbackCentral central = connect("00:00:00:00:00:01");
+        final LoadProfile profile = new LoadProfile();
+        profile.setPayloadSize(3000, 3000);
+        profile.setMessageCount(5);
+        final AtomicReference<LoadGenerator> load = new AtomicReference<>();
+        transport.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                load.set(engine.startLoad(engine.getSession(central.getAddress()), profile, 42));
+            }
+        }, 50);
+
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (central.getMessageCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        // resume() keeps the load message in progress instead of expecting a new one
+        central.resume(MessageHeader.VERSION_1, new byte[0]);
+        while ((load.get() == null || !load.get().isFinished()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        assertTrue(load.get().isFinished());
+        assertEquals(5, load.get().getMessages());
+        assertEquals(5, central.getMessageCount());
+        assertEquals(1, settledMetrics().getRequests());
+    }
+
+    @Test
+    public void boundsUnboundedLoad() throws Exception {
+        start(185, 6, 0);
+        final LoopbackCentral central = connect("00:00:00:00:00:01");
+        LoadProfile unbounded = new LoadProfile();
+        unbounded.setPayloadSize(200, 200);
+        final LoadProfile profile = unbounded.bounded(300);
+        assertTrue(unbounded.isUnbounded());
+        assertEquals(300, profile.getDurationMillis());
+        assertTrue(profile.bounded(1) == profile);
+        final AtomicReference<LoadGenerator> load = new AtomicReference<>();
+        transport.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                load.set(engine.startLoad(engine.getSession(central.getAddress()), profile, 42));
+            }
+        }, 50);
+
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while ((load.get() == null || !load.get().isFinished()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(load.get().isFinished());
+        assertTrue(load.get().getMessages() > 0);
+        // Requests are served again once the run is over
+        central.request(MessageHeader.VERSION_1, new byte[]{1, 2, 3});
+        assertArrayEquals(payload, central.awaitMessage(TIMEOUT));
+    }
+
+    @Test
+    public void clampsLoadPayloadSize() {
+        LoadProfile profile = new LoadProfile();
+        profile.setPayloadSize(0, Integer.MAX_VALUE);
+        assertEquals(0, profile.getMinPayloadSize());
+        assertEquals(LoadProfile.MAX_PAYLOAD_SIZE, profile.getMaxPayloadSize());
+    }
+
+    private static MappedRange mapRange(TransferRequest request, byte version) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(request.getName(), "r");
+        try {
+            return new MappedRange(in.getChannel(), request.getOffset(),
+                    request.getRangeLength(in.length()), version);
+        } finally {
+            in.close();
+        }
+    }
+
+    private LoopbackCentral connect(String address) {
+        LoopbackCentral central = new LoopbackCentral(address, transport);
+        transport.connect(central);
+        return central;
+    }
+
+    /**
+     * Runs call on the engine's event loop, after the connection event in progress.
+     */
+    private <T> T onLoop(Callable<T> call) throws Exception {
+        FutureTask<T> task = new FutureTask<>(call);
+        transport.postDelayed(task, 0);
+        return task.get(TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the engine's metrics once the confirmation of the last notification a central
+     * received has been counted
+     */
+    private TransferMetrics settledMetrics() throws Exception {
+        return onLoop(new Callable<TransferMetrics>() {
+            @Override
+            public TransferMetrics call() {
+                return engine.getMetrics();
+            }
+        });
+    }
+
+    private int windowSize(final LoopbackCentral central) throws Exception {
+        return onLoop(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return engine.getSession(central.getAddress()).getNotificationWindow().getSize();
+            }
+        });
+    }
+
+    private void assertSentOnce(LoopbackCentral central) throws Exception {
+        TransferMetrics metrics = settledMetrics();
+        assertEquals(MessageHeader.SIZE_V1 + payload.length, metrics.getBytesOut());
+        assertEquals(0, metrics.getFailures());
+        assertEquals(1, metrics.getTimeToFirstByte().getCount());
+        assertTrue(central.getTimeToFirstByte() > 0);
+        assertTrue(central.getTransferTime() >= central.getTimeToFirstByte());
+    }
+
+    /**
+     * Central in reliable mode. It loses the first copy of the chunks given to it, asks for them
+     * with a NACK once the last chunk arrived and confirms the message with an empty NACK.
+     */
+    private static class ReliableCentral extends LoopbackCentral {
+
+        private final Set<Integer> dropped = new HashSet<>();
+        private final Map<Integer, byte[]> chunks = new HashMap<>();
+        private int chunkCount = -1;
+        private int nacks;
+        private byte[] payload;
+
+        ReliableCentral(String address, LoopbackTransport transport, Integer... dropped) {
+            super(address, transport);
+            this.dropped.addAll(Arrays.asList(dropped));
+        }
+
+        synchronized int getChunks() {
+            return chunks.size();
+        }
+
+        synchronized int getNacks() {
+            return nacks;
+        }
+
+        synchronized byte[] awaitPayload(long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            long remaining;
+            while (payload == null && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                wait(remaining);
+            }
+            return payload;
+        }
+
+        @Override
+        synchronized void onNotification(int stripe, byte[] value) {
+            int sequence = ((value[0] & 0xFF) << 8) | (value[1] & 0xFF);
+            if (dropped.remove(sequence)) return;
+            byte[] chunk = Arrays.copyOfRange(value, ReliableSource.SEQUENCE_SIZE, value.length);
+            chunks.put(sequence, chunk);
+            if (sequence == 0) {
+                long framed = MessageHeader.size(chunk[0]) + MessageHeader.readLength(chunk)
+                        + ReliableSource.CRC_SIZE;
+                chunkCount = (int) ((framed + chunk.length - 1) / chunk.length);
+            }
+            if (chunkCount < 0 || sequence < chunkCount - 1 && chunks.size() < chunkCount) return;
+            if (chunks.size() < chunkCount) {
+                nack();
+                return;
+            }
+            ByteArrayOutputStream message = new ByteArrayOutputStream();
+            for (int i = 0; i < chunkCount; i++) {
+                message.write(chunks.get(i), 0, chunks.get(i).length);
+            }
+            byte[] framed = message.toByteArray();
+            int headerSize = MessageHeader.size(framed[0]);
+            ByteBuffer crc = ByteBuffer.wrap(framed, framed.length - ReliableSource.CRC_SIZE, ReliableSource.CRC_SIZE);
+            ByteBuffer body = ByteBuffer.wrap(framed, 0, framed.length - ReliableSource.CRC_SIZE);
+            if ((crc.getInt() & 0xFFFFFFFFL) == ReliableSource.crc(body.slice(), headerSize))
+                payload = Arrays.copyOfRange(framed, headerSize, framed.length - ReliableSource.CRC_SIZE);
+            resume(MessageHeader.control(MessageHeader.VERSION_1), TransferRequest.nack(0, new byte[0]));
+            notifyAll();
+        }
+
+        private void nack() {
+            int first = 0;
+            while (chunks.containsKey(first)) first++;
+            byte[] bitmap = new byte[(chunkCount - first + 7) / 8];
+            for (int i = 0; first + i < chunkCount; i++) {
+                if (!chunks.containsKey(first + i)) bitmap[i >> 3] |= (byte) (1 << (i & 7));
+            }
+            nacks++;
+            resume(MessageHeader.control(MessageHeader.VERSION_1), TransferRequest.nack(first, bitmap));
+        }
+    }
+
+    private static class SilentLog implements ProtocolLog {
+        @Override
+        public void log(String msg, boolean newLine, int emptyLines) {
+        }
+
+        @Override
+        public boolean isVerbose() {
+            return false;
+        }
+
+        @Override
+        public void progress() {
+        }
+
+        @Override
+        public void setStatus(String status) {
+        }
+
+        @Override
+        public void setStatus(String status, long bytes) {
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips through both codecs, whole-payload and streamed.
+ */
+public class PayloadCodecTest {
+
+    private static byte[] text(int length) {
+        String words = "lorem ipsum dolor sit amet consectetur adipiscing elit sed do eiusmod ";
+        Random random = new Random(1);
+        StringBuilder builder = new StringBuilder(length);
+        while (builder.length() < length) {
+            int start = random.nextInt(words.length() - 8);
+            builder.append(words, start, start + 8);
+        }
+        return builder.substring(0, length).getBytes();
+    }
+
+    private static byte[] noise(int length) {
+        byte[] data = new byte[length];
+        new Random(1).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int nRead;
+        while ((nRead = in.read(buffer, 0, buffer.length)) != -1) {
+            out.write(buffer, 0, nRead);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static void roundTrip(byte[] data, int codec) throws IOException {
+        byte[] compressed = PayloadCodec.compress(data, 0, data.length, codec);
+        assertArrayEquals(data, PayloadCodec.decompress(compressed, 0, compressed.length, codec));
+
+        byte[] streamed = readAll(PayloadCodec.compressingStream(new ByteArrayInputStream(data), codec));
+        assertArrayEquals(data, PayloadCodec.decompress(streamed, 0, streamed.length, codec));
+    }
+
+    @Test
+    public void compressesText() throws IOException {
+        byte[] data = text(15000);
+        for (int codec : PayloadCodec.SUPPORTED) {
+            roundTrip(data, codec);
+            byte[] compressed = PayloadCodec.compress(data, 0, data.length, codec);
+            assertTrue(PayloadCodec.name(codec), compressed.length < data.length / 2);
+        }
+    }
+
+    @Test
+    public void survivesIncompressibleAndEdgeSizes() throws IOException {
+        int[] lengths = {0, 1, 12, 13, LzCodec.BLOCK_SIZE, LzCodec.BLOCK_SIZE + 1, 100000};
+        for (int codec : PayloadCodec.SUPPORTED) {
+            for (int length : lengths) {
+                roundTrip(noise(length), codec);
+                roundTrip(text(length), codec);
+            }
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedPayload() {
+        byte[] data = text(5000);
+        for (int codec : PayloadCodec.SUPPORTED) {
+            byte[] compressed = PayloadCodec.compress(data, 0, data.length, codec);
+            try {
+                PayloadCodec.decompress(compressed, 0, compressed.length - 3, codec);
+                fail(PayloadCodec.name(codec));
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void streamsUnknownLength() {
+        byte[] data = text(20000);
+        byte version = MessageHeader.withCodec(MessageHeader.VERSION_2, PayloadCodec.LZ);
+        StreamChunkSource source = new StreamChunkSource(
+                PayloadCodec.compressingStream(new ByteArrayInputStream(data), PayloadCodec.LZ),
+                version, MessageHeader.LENGTH_UNKNOWN, 512, new PacketBuffer());
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        byte[] packet;
+        while ((packet = source.next(20)) != null) {
+            message.write(packet, 0, packet.length);
+        }
+        assertFalse(source.hasRemaining());
+        assertNull(source.getError());
+
+        byte[] bytes = message.toByteArray();
+        assertEquals(PayloadCodec.LZ, MessageHeader.codec(bytes[0]));
+        assertEquals(MessageHeader.LENGTH_UNKNOWN, MessageHeader.readLength(bytes));
+        try {
+            assertArrayEquals(data, PayloadCodec.decompress(bytes, MessageHeader.SIZE_V2,
+                    bytes.length - MessageHeader.SIZE_V2, PayloadCodec.LZ));
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Chunking, CRC trailer and selective retransmission of reliable mode.
+ */
+public class ReliableSourceTest {
+
+    private static final int PACKET_SIZE = 20;
+
+    private final byte[] payload = new byte[1000];
+    private ByteBuffer message;
+    private ReliableSource source;
+
+    @Before
+    public void setUp() {
+        new Random(1).nextBytes(payload);
+        byte[] framed = new byte[MessageHeader.SIZE_V1 + payload.length];
+        MessageHeader.write(framed, MessageHeader.VERSION_1, payload.length);
+        System.arraycopy(payload, 0, framed, MessageHeader.SIZE_V1, payload.length);
+        message = ByteBuffer.wrap(framed).asReadOnlyBuffer();
+        source = new ReliableSource(message, PACKET_SIZE, new PacketBuffer());
+    }
+
+    private static int sequence(byte[] packet) {
+        return (packet[0] & 0xFF) << 8 | (packet[1] & 0xFF);
+    }
+
+    @Test
+    public void carriesMessageAndCrc() {
+        byte[] received = new byte[message.remaining() + ReliableSource.CRC_SIZE];
+        byte[] packet;
+        int chunks = 0;
+        while ((packet = source.next(PACKET_SIZE)) != null) {
+            int offset = sequence(packet) * source.getChunkSize();
+            System.arraycopy(packet, ReliableSource.SEQUENCE_SIZE, received, offset,
+                    packet.length - ReliableSource.SEQUENCE_SIZE);
+            chunks++;
+        }
+        assertEquals(source.getChunkCount(), chunks);
+        assertFalse(source.hasRemaining());
+
+        ByteBuffer buffer = ByteBuffer.wrap(received);
+        assertEquals(payload.length, MessageHeader.readLength(received));
+        long crc = buffer.getInt(received.length - ReliableSource.CRC_SIZE) & 0xFFFFFFFFL;
+        assertEquals(ReliableSource.crc(message, MessageHeader.SIZE_V1), crc);
+    }
+
+    @Test
+    public void resendsOnlyNackedChunks() {
+        while (source.next(PACKET_SIZE) != null) {
+            source.onSent(true);
+        }
+        byte[] bitmap = new byte[8];
+        int[] lost = {3, 7, 40};
+        for (int sequence : lost) {
+            bitmap[sequence >> 3] |= 1 << (sequence & 7);
+        }
+        assertEquals(lost.length, source.markMissing(0, bitmap));
+
+        for (int sequence : lost) {
+            assertEquals(sequence, sequence(source.next(PACKET_SIZE)));
+        }
+        assertNull(source.next(PACKET_SIZE));
+        assertEquals(lost.length, source.getRetransmitted());
+    }
+
+    @Test
+    public void resendsFailedNotification() {
+        for (int i = 0; i < 3; i++) {
+            source.next(PACKET_SIZE);
+        }
+        source.onSent(true);
+        source.onSent(false);
+        source.onSent(true);
+
+        assertEquals(1, sequence(source.next(PACKET_SIZE)));
+        assertEquals(3, sequence(source.next(PACKET_SIZE)));
+    }
+}
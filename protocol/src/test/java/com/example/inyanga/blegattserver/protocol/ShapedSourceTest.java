@@ -0,0 +1,85 @@
+package com.example.inyanga.blegattserver.protocol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Packet size distributions, synthetic loss and reordering of load-test messages.
+ */
+public class ShapedSourceTest {
+
+    private static final int PACKET_SIZE = 20;
+
+    private ByteBuffer message;
+
+    @Before
+    public void setUp() {
+        byte[] bytes = new byte[2000];
+        new Random(1).nextBytes(bytes);
+        message = ByteBuffer.wrap(bytes);
+    }
+
+    private List<byte[]> drain(ShapedSource source) {
+        List<byte[]> packets = new ArrayList<>();
+        byte[] packet;
+        while ((packet = source.next(PACKET_SIZE)) != null) {
+            packets.add(packet.clone());
+        }
+        assertFalse(source.hasRemaining());
+        return packets;
+    }
+
+    @Test
+    public void repeatsWithSameSeed() {
+        ChunkSizeDistribution[] distributions = {
+                ChunkSizeDistribution.uniform(1, 19), ChunkSizeDistribution.bimodal(2, 20, 0.8),
+                ChunkSizeDistribution.mtuEdge()};
+        for (ChunkSizeDistribution sizes : distributions) {
+            List<byte[]> first = drain(new ShapedSource(message, sizes, new Random(7), 0.1, 0.1));
+            List<byte[]> second = drain(new ShapedSource(message, sizes, new Random(7), 0.1, 0.1));
+            assertEquals(sizes.toString(), first.size(), second.size());
+            for (int i = 0; i < first.size(); i++) {
+                assertArrayEquals(sizes.toString(), first.get(i), second.get(i));
+                assertTrue(first.get(i).length >= 1 && first.get(i).length <= PACKET_SIZE);
+            }
+        }
+    }
+
+    @Test
+    public void reorderingKeepsEveryByte() {
+        ShapedSource source = new ShapedSource(message, ChunkSizeDistribution.fixed(10), new Random(3), 0, 0.3);
+        List<byte[]> packets = drain(source);
+        assertTrue(source.getReordered() > 0);
+
+        // Fixed-size packets can be put back in place by their content
+        byte[] expected = message.array();
+        byte[] restored = new byte[expected.length];
+        for (byte[] packet : packets) {
+            for (int offset = 0; offset < expected.length; offset += 10) {
+                if (Arrays.equals(packet, Arrays.copyOfRange(expected, offset, offset + packet.length)))
+                    System.arraycopy(packet, 0, restored, offset, packet.length);
+            }
+        }
+        assertArrayEquals(expected, restored);
+    }
+
+    @Test
+    public void dropsPackets() {
+        ShapedSource source = new ShapedSource(message, ChunkSizeDistribution.full(), new Random(5), 0.25, 0);
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        for (byte[] packet : drain(source)) {
+            received.write(packet, 0, packet.length);
+        }
+        assertTrue(source.getDropped() > 0);
+        assertEquals(message.remaining() - source.getDropped() * PACKET_SIZE, received.size());
+    }
+}